@@ -0,0 +1,50 @@
+package at.htl.gotjdbcrepository.fixture;
+
+import at.htl.gotjdbcrepository.control.CsvPersonImporter;
+import at.htl.gotjdbcrepository.entity.Person;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Testdaten für die Benchmarks (src/jmh/java) und den Lasttest (src/loadtest/java)
+ */
+public class PersonFixtures {
+
+    private PersonFixtures() {
+    }
+
+    /**
+     * Erzeugt size Personen aus den Zeilen von csv (z.B. got.csv); die Namen werden durchnummeriert,
+     * damit (name, city, house) eindeutig bleibt
+     */
+    public static List<Person> generate(Path csv, int size) throws IOException {
+        List<String> lines = Files.readAllLines(csv, StandardCharsets.UTF_8);
+        List<Person> persons = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String[] elements = lines.get(1 + i % (lines.size() - 1)).split(";");
+            persons.add(new Person(elements[0].trim() + " " + i, elements[1].trim(), elements[2].trim()));
+        }
+        return persons;
+    }
+
+    /**
+     * Schreibt die Personen im Format von got.csv (mit Kopfzeile) für CsvPersonImporter und bulkLoad().
+     * Die Felder werden nicht maskiert, sie dürfen kein ';' enthalten.
+     */
+    public static void writeCsv(List<Person> persons, Path target) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            writer.write(CsvPersonImporter.HEADER);
+            writer.newLine();
+            for (Person person : persons) {
+                writer.write(person.getName() + ";" + person.getCity() + ";" + person.getHouse());
+                writer.newLine();
+            }
+        }
+    }
+}
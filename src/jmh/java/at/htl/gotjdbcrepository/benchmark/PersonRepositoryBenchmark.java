@@ -0,0 +1,171 @@
+package at.htl.gotjdbcrepository.benchmark;
+
+import at.htl.gotjdbcrepository.control.CsvPersonImporter;
+import at.htl.gotjdbcrepository.control.DerbyMode;
+import at.htl.gotjdbcrepository.control.PersonRepository;
+import at.htl.gotjdbcrepository.entity.Person;
+import at.htl.gotjdbcrepository.fixture.PersonFixtures;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Benchmarks für die CRUD- und Bulk-Methoden von PersonRepository.
+ * <p>
+ * Die Benchmarks verwenden Embedded Derby (Datenbank in target/derby-benchmark), es ist kein Server nötig.
+ * Die Tabelle wird pro Trial mit datasetSize Personen befüllt, die aus got.csv erzeugt werden
+ * (Pfad über -Dgot.csv=... änderbar); importCsv importiert dieselben Personen aus einer temporären Datei.
+ * Start: mvn -P benchmark package exec:exec
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersonRepositoryBenchmark {
+
+    static final Path GOT_CSV = Paths.get(System.getProperty("got.csv", "got.csv"));
+
+    @State(Scope.Benchmark)
+    public static class Dataset {
+
+        @Param({"1000", "10000"})
+        public int datasetSize;
+
+        PersonRepository repository;
+        List<Person> persons;
+        Path csv;
+        List<String> houses;
+        final AtomicLong sequence = new AtomicLong();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            System.setProperty("derby.system.home",
+                    System.getProperty("derby.system.home", "target/derby-benchmark"));
+            PersonRepository.useDatabase(DerbyMode.EMBEDDED, "benchmark");
+            repository = PersonRepository.getInstance();
+            repository.deleteAll();
+            persons = PersonFixtures.generate(GOT_CSV, datasetSize);
+            csv = Files.createTempFile("benchmark", ".csv");
+            PersonFixtures.writeCsv(persons, csv);
+            persons = repository.saveAll(persons);
+            houses = persons.stream().map(Person::getHouse).distinct().collect(Collectors.toList());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            repository.deleteAll();
+            repository.close();
+            Files.deleteIfExists(csv);
+        }
+
+        Person randomPerson() {
+            return persons.get(ThreadLocalRandom.current().nextInt(persons.size()));
+        }
+
+        String randomHouse() {
+            return houses.get(ThreadLocalRandom.current().nextInt(houses.size()));
+        }
+
+        Person newPerson() {
+            return new Person("Benchmark " + sequence.incrementAndGet(), "Braavos", "Stark");
+        }
+    }
+
+    /**
+     * Für delete: vor jedem Aufruf wird eine Person eingefügt
+     */
+    @State(Scope.Thread)
+    public static class PersonToDelete {
+        long id;
+
+        @Setup(Level.Invocation)
+        public void setUp(Dataset dataset) {
+            id = dataset.repository.save(dataset.newPerson()).getId();
+        }
+    }
+
+    /**
+     * Für deleteAll und den CSV-Import: vor jedem Aufruf wird die Tabelle neu befüllt bzw. geleert
+     */
+    @State(Scope.Benchmark)
+    public static class Refill {
+        @Setup(Level.Invocation)
+        public void setUp(Dataset dataset) {
+            dataset.repository.deleteAll();
+            dataset.persons.forEach(person -> person.setId(null));
+            dataset.repository.saveAll(dataset.persons);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Empty {
+        @Setup(Level.Invocation)
+        public void setUp(Dataset dataset) {
+            dataset.repository.deleteAll();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown(Dataset dataset) {
+            // für die übrigen Benchmarks wieder den Datenbestand herstellen
+            dataset.repository.deleteAll();
+            dataset.persons.forEach(person -> person.setId(null));
+            dataset.repository.saveAll(dataset.persons);
+        }
+    }
+
+    @Benchmark
+    public Person saveInsert(Dataset dataset) {
+        return dataset.repository.save(dataset.newPerson());
+    }
+
+    @Benchmark
+    public Person saveUpdate(Dataset dataset) {
+        Person person = dataset.randomPerson();
+        Person copy = new Person(person.getName(), person.getCity(), person.getHouse());
+        copy.setId(person.getId());
+        return dataset.repository.save(copy);
+    }
+
+    @Benchmark
+    public Person find(Dataset dataset) {
+        return dataset.repository.find(dataset.randomPerson().getId());
+    }
+
+    @Benchmark
+    public List<Person> findByHouse(Dataset dataset) {
+        return dataset.repository.findByHouse(dataset.randomHouse());
+    }
+
+    @Benchmark
+    public void delete(Dataset dataset, PersonToDelete personToDelete) {
+        dataset.repository.delete(personToDelete.id);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2, batchSize = 1)
+    @Measurement(iterations = 5, batchSize = 1)
+    public void deleteAll(Dataset dataset, Refill refill) {
+        dataset.repository.deleteAll();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2, batchSize = 1)
+    @Measurement(iterations = 5, batchSize = 1)
+    public void importCsv(Dataset dataset, Empty empty, Blackhole blackhole) throws IOException {
+        blackhole.consume(new CsvPersonImporter(dataset.repository).importFile(dataset.csv));
+    }
+}
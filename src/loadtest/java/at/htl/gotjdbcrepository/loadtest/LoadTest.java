@@ -0,0 +1,452 @@
+package at.htl.gotjdbcrepository.loadtest;
+
+import at.htl.gotjdbcrepository.control.DerbyMode;
+import at.htl.gotjdbcrepository.control.LatencyHistogram;
+import at.htl.gotjdbcrepository.control.PersonRepository;
+import at.htl.gotjdbcrepository.entity.Person;
+import at.htl.gotjdbcrepository.fixture.PersonFixtures;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Lastgenerator für PersonRepository: threads Threads rufen gleichzeitig eine gewichtete Mischung von
+ * save (neue Person), update (modify() mit optimistischem Sperren), find, findByHouse und delete auf.
+ * <p>
+ * Die Datenbank (Embedded Derby in target/derby-loadtest) wird vorher mit rows Personen aus got.csv
+ * befüllt. Nach warmup Sekunden Aufwärmen wird duration Sekunden gemessen:
+ * - intervals.csv: pro Intervall und Operation Durchsatz, Fehlerquote und p50/p99/p99.9-Latenz,
+ *   in der Zeile "all" zusätzlich die SQL-Fehler des Repositories (z.B. Lock-Timeouts 40XL1)
+ * - summary.json: dieselben Werte über die ganze Messung, SQL-Fehler nach SQLState und die Wartezeit
+ *   auf eine Verbindung aus dem Pool
+ * <p>
+ * Mit rate > 0 wird mit fester Rate gesendet (open loop) und die Latenz ab dem geplanten Startzeitpunkt
+ * gemessen, Rückstau durch eine gesättigte Datenbank fließt damit in die Perzentile ein.
+ * <p>
+ * Start: mvn -P loadtest package exec:exec -Dloadtest.args="threads=64 duration=60 mix=find:80,save:20"
+ */
+public class LoadTest {
+
+    enum Operation {
+        SAVE("save"), UPDATE("update"), FIND("find"), FIND_BY_HOUSE("findByHouse"), DELETE("delete");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        static Operation of(String label) {
+            for (Operation operation : values()) {
+                if (operation.label.equalsIgnoreCase(label)) {
+                    return operation;
+                }
+            }
+            throw new IllegalArgumentException("unknown operation: " + label);
+        }
+    }
+
+    static final String ALL = "all";
+    static final String CSV_HEADER = "elapsed_s,phase,operation,count,ops_per_s,errors,error_rate,p50_us,p99_us,p999_us,max_us,sql_errors";
+
+    private final Options options;
+    private final PersonRepository repository;
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+    private final Stats all = new Stats();
+    private final Operation[] mix;
+    private final AtomicLong firstId = new AtomicLong();
+    private final AtomicLong maxId = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private List<String> houses;
+    private List<String> cities;
+    // nur im Reporter-Thread verwendet
+    private long reportedSqlErrors;
+
+    LoadTest(Options options, PersonRepository repository) {
+        this.options = options;
+        this.repository = repository;
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+        mix = options.mix();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        System.setProperty("derby.system.home", System.getProperty("derby.system.home", "target/derby-loadtest"));
+        PersonRepository.useDatabase(options.mode, options.database);
+        try (PersonRepository repository = PersonRepository.getInstance()) {
+            LoadTest loadTest = new LoadTest(options, repository);
+            loadTest.seed();
+            loadTest.run();
+        }
+    }
+
+    /**
+     * Befüllt die Tabelle mit options.rows Personen aus got.csv (siehe PersonFixtures.generate())
+     */
+    void seed() throws IOException {
+        List<Person> persons = PersonFixtures.generate(options.csv, options.rows);
+        long start = System.nanoTime();
+        repository.deleteAll();
+        repository.saveAll(persons);
+        System.out.format("seeded %d persons in %d ms%n", persons.size(), (System.nanoTime() - start) / 1_000_000);
+
+        firstId.set(persons.stream().mapToLong(Person::getId).min().orElse(1));
+        maxId.set(persons.stream().mapToLong(Person::getId).max().orElse(1));
+        houses = persons.stream().map(Person::getHouse).distinct().collect(Collectors.toList());
+        cities = persons.stream().map(Person::getCity).distinct().collect(Collectors.toList());
+    }
+
+    void run() throws IOException, InterruptedException {
+        Files.createDirectories(options.out);
+        long startNanos = System.nanoTime();
+        long measureNanos = startNanos + TimeUnit.SECONDS.toNanos(options.warmup);
+        long endNanos = measureNanos + TimeUnit.SECONDS.toNanos(options.duration);
+
+        ExecutorService workers = Executors.newFixedThreadPool(options.threads);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(options.out.resolve("intervals.csv")))) {
+            csv.println(CSV_HEADER);
+            reporter.scheduleAtFixedRate(() -> {
+                long now = System.nanoTime();
+                boolean warmup = now < measureNanos + TimeUnit.MILLISECONDS.toNanos(100);
+                long errors = sqlErrorCount();
+                report(csv, (now - startNanos) / 1e9, warmup ? "warmup" : "measure", errors - reportedSqlErrors);
+                reportedSqlErrors = errors;
+            }, options.interval, options.interval, TimeUnit.SECONDS);
+            reporter.schedule(this::startMeasurement, measureNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+            for (int i = 0; i < options.threads; i++) {
+                workers.execute(() -> work(endNanos));
+            }
+            workers.shutdown();
+            workers.awaitTermination(options.warmup + options.duration + 60, TimeUnit.SECONDS);
+            reporter.shutdown();
+            reporter.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        writeSummary(options.out.resolve("summary.json"));
+        System.out.println("results written to " + options.out.toAbsolutePath());
+    }
+
+    private void work(long endNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Abstand zwischen zwei Aufrufen eines Threads bei fester Rate
+        long period = options.rate > 0 ? TimeUnit.SECONDS.toNanos(options.threads) / options.rate : 0;
+        long next = System.nanoTime() + (period > 0 ? random.nextLong(period) : 0);
+        while (true) {
+            long start;
+            if (period > 0) {
+                long delay = next - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+                start = next;
+                next += period;
+            } else {
+                start = System.nanoTime();
+            }
+            if (start >= endNanos) {
+                return;
+            }
+            Operation operation = mix[random.nextInt(mix.length)];
+            boolean ok;
+            try {
+                ok = execute(operation, random);
+            } catch (RuntimeException e) {
+                ok = false;
+            }
+            long nanos = System.nanoTime() - start;
+            stats.get(operation).record(nanos, ok);
+            all.record(nanos, ok);
+        }
+    }
+
+    /**
+     * @return false, wenn die Operation fehlgeschlagen ist (Ausnahmen werden in work() gezählt)
+     */
+    private boolean execute(Operation operation, ThreadLocalRandom random) {
+        switch (operation) {
+            case SAVE:
+                Person saved = repository.save(new Person("Load " + sequence.incrementAndGet(),
+                        randomOf(cities, random), randomOf(houses, random)));
+                if (saved.getId() == null) {
+                    return false;
+                }
+                maxId.accumulateAndGet(saved.getId(), Math::max);
+                return true;
+            case UPDATE:
+                String city = randomOf(cities, random);
+                repository.modify(randomId(random), person -> person.setCity(city));
+                return true;
+            case FIND:
+                repository.find(randomId(random));
+                return true;
+            case FIND_BY_HOUSE:
+                repository.findByHouse(randomOf(houses, random));
+                return true;
+            case DELETE:
+                repository.delete(randomId(random));
+                return true;
+            default:
+                throw new IllegalStateException(operation.toString());
+        }
+    }
+
+    /**
+     * Gelöschte ids werden nicht ausgespart: find und update treffen dann keine Person
+     */
+    private long randomId(ThreadLocalRandom random) {
+        return random.nextLong(firstId.get(), maxId.get() + 1);
+    }
+
+    private static String randomOf(List<String> values, ThreadLocalRandom random) {
+        return values.get(random.nextInt(values.size()));
+    }
+
+    /**
+     * @return die Operationen der Mischung in der Reihenfolge der Enum
+     */
+    private List<Operation> operations() {
+        return stats.keySet().stream()
+                .filter(operation -> options.weights.getOrDefault(operation.label, 0) > 0)
+                .collect(Collectors.toList());
+    }
+
+    private void startMeasurement() {
+        stats.values().forEach(Stats::resetTotal);
+        all.resetTotal();
+        repository.getMetrics().reset();
+        reportedSqlErrors = 0;
+    }
+
+    private long sqlErrorCount() {
+        return repository.getMetrics().getErrorsBySqlState().values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    private synchronized void report(PrintWriter csv, double elapsedSeconds, String phase, long sqlErrors) {
+        StringBuilder console = new StringBuilder(String.format(Locale.ROOT, "%6.1fs %-7s", elapsedSeconds, phase));
+        for (Operation operation : operations()) {
+            Window window = stats.get(operation).nextWindow();
+            csv.println(csvLine(elapsedSeconds, phase, operation.label, window, options.interval, ""));
+            console.append(String.format(Locale.ROOT, " %s=%d/s p99=%dus", operation.label,
+                    window.latency.getCount() / options.interval, window.latency.getPercentileMicros(99)));
+        }
+        Window window = all.nextWindow();
+        csv.println(csvLine(elapsedSeconds, phase, ALL, window, options.interval, Long.toString(sqlErrors)));
+        csv.flush();
+        console.append(String.format(Locale.ROOT, " | %d ops/s, %d errors, %d sql errors",
+                window.latency.getCount() / options.interval, window.errors.sum(), sqlErrors));
+        System.out.println(console);
+    }
+
+    static String csvLine(double elapsedSeconds, String phase, String operation, Window window, long seconds,
+                          String sqlErrors) {
+        long count = window.latency.getCount();
+        long errors = window.errors.sum();
+        return String.format(Locale.ROOT, "%.1f,%s,%s,%d,%.1f,%d,%.4f,%d,%d,%d,%d,%s",
+                elapsedSeconds, phase, operation, count, (double) count / seconds, errors,
+                count == 0 ? 0.0 : (double) errors / count,
+                window.latency.getPercentileMicros(50), window.latency.getPercentileMicros(99),
+                window.latency.getPercentileMicros(99.9), window.latency.getMaxMicros(), sqlErrors);
+    }
+
+    private void writeSummary(Path file) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format(Locale.ROOT,
+                "  \"threads\": %d,\n  \"durationSeconds\": %d,\n  \"warmupSeconds\": %d,\n  \"rate\": %d,\n  \"rows\": %d,\n",
+                options.threads, options.duration, options.warmup, options.rate, options.rows));
+        json.append("  \"mix\": ").append(jsonObject(options.weights, String::valueOf)).append(",\n");
+        Map<String, Window> totals = new LinkedHashMap<>();
+        operations().forEach(operation -> totals.put(operation.label, stats.get(operation).total.get()));
+        totals.put(ALL, all.total.get());
+        json.append("  \"operations\": ").append(jsonObject(totals, window -> jsonWindow(window, options.duration)))
+                .append(",\n");
+        json.append("  \"sqlErrorsBySqlState\": ")
+                .append(jsonObject(repository.getMetrics().getErrorsBySqlState(), String::valueOf)).append(",\n");
+        json.append("  \"poolWaitP99Micros\": ").append(repository.getMetrics().getPoolWaitP99Micros()).append('\n');
+        json.append("}\n");
+        Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.print(json);
+    }
+
+    static String jsonWindow(Window window, long seconds) {
+        long count = window.latency.getCount();
+        long errors = window.errors.sum();
+        return String.format(Locale.ROOT,
+                "{\"count\": %d, \"opsPerSecond\": %.1f, \"errors\": %d, \"errorRate\": %.4f, " +
+                        "\"meanMicros\": %.0f, \"p50Micros\": %d, \"p99Micros\": %d, \"p999Micros\": %d, \"maxMicros\": %d}",
+                count, (double) count / seconds, errors, count == 0 ? 0.0 : (double) errors / count,
+                window.latency.getMeanMicros(), window.latency.getPercentileMicros(50),
+                window.latency.getPercentileMicros(99), window.latency.getPercentileMicros(99.9),
+                window.latency.getMaxMicros());
+    }
+
+    /**
+     * Die Schlüssel sind Namen von Operationen bzw. SQLStates und müssen nicht escaped werden
+     */
+    private static <V> String jsonObject(Map<String, V> values, Function<V, String> toJson) {
+        if (values.isEmpty()) {
+            return "{}";
+        }
+        return values.entrySet().stream()
+                .map(entry -> "\"" + entry.getKey() + "\": " + toJson.apply(entry.getValue()))
+                .collect(Collectors.joining(",\n    ", "{\n    ", "\n  }"));
+    }
+
+    /**
+     * Messwerte eines Intervalls bzw. der ganzen Messung
+     */
+    static class Window {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+
+        void record(long nanos, boolean ok) {
+            latency.recordNanos(nanos);
+            if (!ok) {
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * Messwerte einer Operation: das laufende Intervall wird vom Reporter ausgetauscht
+     */
+    static class Stats {
+        private final AtomicReference<Window> window = new AtomicReference<>(new Window());
+        private final AtomicReference<Window> total = new AtomicReference<>(new Window());
+
+        void record(long nanos, boolean ok) {
+            window.get().record(nanos, ok);
+            total.get().record(nanos, ok);
+        }
+
+        Window nextWindow() {
+            return window.getAndSet(new Window());
+        }
+
+        void resetTotal() {
+            total.set(new Window());
+        }
+    }
+
+    /**
+     * Parameter als key=value, z.B. threads=64 duration=60 mix=find:80,save:20
+     */
+    static class Options {
+        int threads = 64;
+        long duration = 60;
+        long warmup = 10;
+        long interval = 1;
+        long rate = 0;
+        int rows = 10_000;
+        DerbyMode mode = DerbyMode.EMBEDDED;
+        String database = "loadtest";
+        Path csv = Paths.get("got.csv");
+        Path out = Paths.get("target", "loadtest");
+        Map<String, Integer> weights = parseMix("save:15,update:10,find:55,findByHouse:15,delete:5");
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                String[] pair = arg.split("=", 2);
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("expected key=value: " + arg);
+                }
+                String value = pair[1].trim();
+                switch (pair[0].trim()) {
+                    case "threads":
+                        options.threads = Integer.parseInt(value);
+                        break;
+                    case "duration":
+                        options.duration = Long.parseLong(value);
+                        break;
+                    case "warmup":
+                        options.warmup = Long.parseLong(value);
+                        break;
+                    case "interval":
+                        options.interval = Long.parseLong(value);
+                        break;
+                    case "rate":
+                        options.rate = Long.parseLong(value);
+                        break;
+                    case "rows":
+                        options.rows = Integer.parseInt(value);
+                        break;
+                    case "mode":
+                        options.mode = DerbyMode.valueOf(value.toUpperCase());
+                        break;
+                    case "database":
+                        options.database = value;
+                        break;
+                    case "csv":
+                        options.csv = Paths.get(value);
+                        break;
+                    case "out":
+                        options.out = Paths.get(value);
+                        break;
+                    case "mix":
+                        options.weights = parseMix(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option: " + pair[0]);
+                }
+            }
+            if (options.threads < 1 || options.duration < 1 || options.warmup < 0 || options.interval < 1
+                    || options.rate < 0 || options.rows < 1) {
+                throw new IllegalArgumentException("threads, duration, interval and rows must be positive");
+            }
+            return options;
+        }
+
+        /**
+         * "find:80,save:20" -> {find=80, save=20}
+         */
+        static Map<String, Integer> parseMix(String mix) {
+            Map<String, Integer> weights = new LinkedHashMap<>();
+            for (String entry : mix.split(",")) {
+                String[] pair = entry.split(":");
+                String label = Operation.of(pair[0].trim()).label;
+                weights.put(label, pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1);
+            }
+            return weights;
+        }
+
+        /**
+         * @return jede Operation so oft wie ihr Gewicht, für eine gleichverteilte Auswahl
+         */
+        Operation[] mix() {
+            List<Operation> operations = new ArrayList<>();
+            weights.forEach((label, weight) -> {
+                for (int i = 0; i < weight; i++) {
+                    operations.add(Operation.of(label));
+                }
+            });
+            if (operations.isEmpty()) {
+                throw new IllegalArgumentException("mix must contain at least one operation with a positive weight");
+            }
+            return operations.toArray(new Operation[0]);
+        }
+    }
+}
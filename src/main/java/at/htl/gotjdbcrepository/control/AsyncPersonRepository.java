@@ -0,0 +1,124 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Asynchrone Fassade für das PersonRepository.
+ * <p>
+ * Jeder Aufruf läuft auf einem eigenen Thread und liefert sofort ein CompletableFuture. Ab Java 21
+ * werden virtuelle Threads verwendet (per Reflection, da das Projekt für Java 11 kompiliert wird),
+ * sonst ein Thread-Pool mit so vielen Threads wie der Connection-Pool Verbindungen hat.
+ * <p>
+ * Eine Semaphore begrenzt die gleichzeitig laufenden Datenbankzugriffe auf die Größe des
+ * Connection-Pools, damit nicht tausende Threads auf eine Verbindung warten.
+ */
+public class AsyncPersonRepository implements AutoCloseable {
+
+    private final PersonRepository repository;
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+
+    public AsyncPersonRepository(PersonRepository repository) {
+        this(repository, repository.getConnectionPool().getMaxSize());
+    }
+
+    public AsyncPersonRepository(PersonRepository repository, int maxConcurrency) {
+        this.repository = repository;
+        this.inFlight = new Semaphore(maxConcurrency);
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : newPlatformThreadPool(maxConcurrency);
+    }
+
+    public CompletableFuture<Person> saveAsync(Person person) {
+        return submit(() -> repository.save(person));
+    }
+
+    public CompletableFuture<List<Person>> saveAllAsync(Collection<Person> persons) {
+        return submit(() -> repository.saveAll(persons));
+    }
+
+    public CompletableFuture<Person> findAsync(long id) {
+        return submit(() -> repository.find(id));
+    }
+
+    public CompletableFuture<Map<Long, Person>> findAllAsync(Collection<Long> ids) {
+        return submit(() -> repository.findAll(ids));
+    }
+
+    public CompletableFuture<List<Person>> findByHouseAsync(String house) {
+        return submit(() -> repository.findByHouse(house));
+    }
+
+    public CompletableFuture<List<Person>> findByCityAsync(String city) {
+        return submit(() -> repository.findByCity(city));
+    }
+
+    public CompletableFuture<Void> deleteAsync(long id) {
+        return submit(() -> {
+            repository.delete(id);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> deleteAllAsync() {
+        return submit(() -> {
+            repository.deleteAll();
+            return null;
+        });
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> operation) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            try {
+                return operation.get();
+            } finally {
+                inFlight.release();
+            }
+        }, executor);
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformThreadPool(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "person-repository-async-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
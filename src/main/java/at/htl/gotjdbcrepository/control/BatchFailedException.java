@@ -0,0 +1,31 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+
+import java.util.List;
+
+/**
+ * Wird von den Block-Methoden (saveAll(), upsertAll()) geworfen, wenn nicht alle Personen gespeichert werden konnten.
+ * Die übrigen Blöcke wurden trotzdem gespeichert. getFailed() liefert die nicht gespeicherten Personen,
+ * die Ursache des ersten Fehlers ist die cause, alle weiteren sind als suppressed angehängt.
+ */
+public class BatchFailedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<Person> failed;
+
+    public BatchFailedException(List<Person> failed, List<? extends Exception> causes) {
+        super(String.format("%d persons could not be saved: %s", failed.size(),
+                causes.isEmpty() ? "" : causes.get(0).getMessage()),
+                causes.isEmpty() ? null : causes.get(0));
+        this.failed = List.copyOf(failed);
+        for (int i = 1; i < causes.size(); i++) {
+            addSuppressed(causes.get(i));
+        }
+    }
+
+    public List<Person> getFailed() {
+        return failed;
+    }
+}
@@ -0,0 +1,368 @@
+package at.htl.gotjdbcrepository.control;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Einfacher, begrenzter Connection-Pool.
+ * <p>
+ * Statt bei jedem Zugriff mit DriverManager.getConnection(...) eine neue Verbindung zum Derby-Server
+ * aufzubauen, werden die physischen Verbindungen wiederverwendet. Die von getConnection() gelieferte
+ * Connection ist ein Proxy: close() schließt die Verbindung nicht, sondern gibt sie an den Pool zurück.
+ * <p>
+ * - maxSize begrenzt die Anzahl gleichzeitig verwendeter Verbindungen
+ * - minSize Verbindungen bleiben auch nach dem Idle-Timeout erhalten
+ * - beim Ausborgen wird eine Verbindung, die länger als validationIntervalMillis nicht verwendet wurde,
+ *   mit isValid() geprüft (ein Roundtrip zum Server); kürzer verwendete Verbindungen ohne Prüfung
+ * - ist nach borrowTimeoutMillis keine Verbindung frei, wird eine SQLTransientConnectionException geworfen
+ * - jede physische Verbindung hat einen StatementCache mit bis zu statementCacheSize PreparedStatements
+ * - beim Zurückgeben wird eine offene Transaktion zurückgerollt und ein geänderter Isolation-Level
+ *   zurückgesetzt
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    private final long validationIntervalMillis;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PhysicalConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private final LatencyHistogram borrowWait = new LatencyHistogram();
+    private volatile InstrumentedStatement.StatementObserver statementObserver;
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    public ConnectionPool(String url, String username, String password,
+                          int minSize, int maxSize,
+                          long idleTimeoutMillis, long borrowTimeoutMillis,
+                          int validationTimeoutSeconds, long validationIntervalMillis, int statementCacheSize) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(idleTimeoutMillis / 2, 1000);
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Öffnet minSize Verbindungen im Voraus
+     *
+     * @throws SQLException wenn der Datenbankserver nicht erreichbar ist
+     */
+    public void warmUp() throws SQLException {
+        while (openConnections.get() < minSize) {
+            idle.offerLast(openPhysicalConnection());
+        }
+    }
+
+    /**
+     * Borgt eine Verbindung aus dem Pool aus. Die Verbindung muss mit close() (try-with-resources)
+     * zurückgegeben werden.
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            boolean acquired = permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+            borrowWait.recordNanos(System.nanoTime() - start);
+            if (!acquired) {
+                throw new SQLTransientConnectionException(
+                        "no connection available within " + borrowTimeoutMillis + " ms (maxSize=" + maxSize + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("interrupted while waiting for a connection", e);
+        }
+
+        try {
+            PhysicalConnection candidate;
+            while ((candidate = idle.pollFirst()) != null) {
+                if (isUsable(candidate)) {
+                    return wrap(candidate);
+                }
+                discard(candidate);
+            }
+            return wrap(openPhysicalConnection());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    /**
+     * @return Wartezeiten beim Ausborgen einer Verbindung
+     */
+    public LatencyHistogram getBorrowWait() {
+        return borrowWait;
+    }
+
+    /**
+     * Alle Statements des Pools melden ihre Ausführungen an observer (null schaltet das ab)
+     */
+    void setStatementObserver(InstrumentedStatement.StatementObserver observer) {
+        this.statementObserver = observer;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PhysicalConnection entry;
+        while ((entry = idle.pollFirst()) != null) {
+            discard(entry);
+        }
+    }
+
+    private PhysicalConnection openPhysicalConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, username, password);
+        PhysicalConnection physical;
+        try {
+            physical = new PhysicalConnection(connection);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        openConnections.incrementAndGet();
+        return physical;
+    }
+
+    private boolean isUsable(PhysicalConnection physical) {
+        if (System.currentTimeMillis() - physical.lastUsed < validationIntervalMillis) {
+            return true;
+        }
+        try {
+            return physical.connection.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(PhysicalConnection physical) {
+        openConnections.decrementAndGet();
+        try {
+            if (!physical.connection.isClosed()) {
+                physical.statements.closeAll();
+            }
+            physical.connection.close();
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Wird beim close() der Proxy-Connection aufgerufen
+     */
+    private void release(PhysicalConnection physical) {
+        Connection connection = physical.connection;
+        try {
+            if (closed || connection.isClosed()) {
+                discard(physical);
+                return;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            if (physical.isolationChanged) {
+                connection.setTransactionIsolation(physical.defaultIsolation);
+                physical.isolationChanged = false;
+            }
+            connection.clearWarnings();
+            physical.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(physical);
+        } catch (SQLException e) {
+            discard(physical);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Schließt Verbindungen, die länger als idleTimeoutMillis nicht verwendet wurden,
+     * solange mehr als minSize Verbindungen offen sind
+     */
+    private void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        PhysicalConnection oldest;
+        while (openConnections.get() > minSize && (oldest = idle.pollLast()) != null) {
+            if (now - oldest.lastUsed < idleTimeoutMillis) {
+                idle.offerLast(oldest);
+                return;
+            }
+            discard(oldest);
+        }
+    }
+
+    private Connection wrap(PhysicalConnection physical) {
+        return (Connection) Proxy.newProxyInstance(
+                ConnectionPool.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new PooledConnectionHandler(physical));
+    }
+
+    private PreparedStatement observe(PreparedStatement statement, String sql) {
+        InstrumentedStatement.StatementObserver observer = statementObserver;
+        return observer == null ? statement : InstrumentedStatement.wrap(statement, PreparedStatement.class, sql, observer);
+    }
+
+    /**
+     * Auch einfache Statements (MERGE, LOCK TABLE, DDL, ...), CallableStatements (SYSCS_IMPORT_DATA, ...) und
+     * nicht gecachte PreparedStatements melden ihre Ausführungen
+     */
+    private Object observe(String methodName, Object statement, Object[] args) {
+        InstrumentedStatement.StatementObserver observer = statementObserver;
+        if (observer == null) {
+            return statement;
+        }
+        switch (methodName) {
+            case "createStatement":
+                return InstrumentedStatement.wrap((Statement) statement, Statement.class, null, observer);
+            case "prepareCall":
+                return InstrumentedStatement.wrap((CallableStatement) statement, CallableStatement.class,
+                        (String) args[0], observer);
+            case "prepareStatement":
+                return InstrumentedStatement.wrap((PreparedStatement) statement, PreparedStatement.class,
+                        (String) args[0], observer);
+            default:
+                return statement;
+        }
+    }
+
+    private class PhysicalConnection {
+        final Connection connection;
+        final StatementCache statements;
+        final int defaultIsolation;
+        boolean isolationChanged;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        PhysicalConnection(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.defaultIsolation = connection.getTransactionIsolation();
+            this.statements = new StatementCache(connection, statementCacheSize,
+                    statementCacheHits, statementCacheMisses);
+        }
+    }
+
+    private class PooledConnectionHandler implements InvocationHandler {
+        private final PhysicalConnection physical;
+        private boolean returned;
+
+        PooledConnectionHandler(PhysicalConnection physical) {
+            this.physical = physical;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        release(physical);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || physical.connection.isClosed();
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) {
+                        return proxy;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled[" + physical.connection + "]";
+                case "setTransactionIsolation":
+                    physical.isolationChanged = true;
+                    break;
+                case "prepareStatement":
+                    if (returned) {
+                        throw new SQLException("connection has already been returned to the pool");
+                    }
+                    if (args.length == 1) {
+                        return observe(physical.statements.prepare((Connection) proxy, (String) args[0],
+                                Statement.NO_GENERATED_KEYS), (String) args[0]);
+                    }
+                    if (args.length == 2 && args[1] instanceof Integer) {
+                        return observe(physical.statements.prepare((Connection) proxy, (String) args[0],
+                                (Integer) args[1]), (String) args[0]);
+                    }
+                    break;
+                default:
+                    if (returned) {
+                        throw new SQLException("connection has already been returned to the pool");
+                    }
+            }
+            try {
+                return observe(method.getName(), method.invoke(physical.connection, args), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
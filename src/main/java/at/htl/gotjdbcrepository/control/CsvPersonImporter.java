@@ -0,0 +1,446 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Importiert Dateien im Format von got.csv (name;city;house) in das PersonRepository.
+ * <p>
+ * Die Datei wird zeilenweise gelesen, nie komplett in den Speicher geladen:
+ * - der aufrufende Thread liest Blöcke von batchSize Zeilen
+ * - die Blöcke werden parallel von parseThreads Threads geparst
+ * - ein Writer-Thread speichert die geparsten Blöcke in der ursprünglichen Reihenfolge mit saveAll()
+ * <p>
+ * Zwischen Leser und Writer liegt eine begrenzte Queue (queueCapacity Blöcke), dadurch bleibt der
+ * Speicherverbrauch auch bei sehr großen Dateien konstant.
+ * <p>
+ * Felder dürfen in Anführungszeichen stehen (wie sie PersonExporter schreibt): darin sind ;, Zeilenumbrüche
+ * und verdoppelte " erlaubt. Ein Datensatz über mehrere Zeilen wird unter der Nummer seiner ersten Zeile gemeldet.
+ * Ist ein Datensatz nach MAX_RECORD_LINES Zeilen oder MAX_RECORD_LENGTH Zeichen noch offen (z.B. wegen eines
+ * einzelnen " in O"Brien), wird nur seine erste Zeile abgelehnt und mit der nächsten Zeile neu begonnen.
+ * <p>
+ * Scheitert das Parsen eines Blocks oder das Speichern mit einer RuntimeException, hört der Leser auf,
+ * der Writer verwirft die restlichen Blöcke und importFile() wirft die Exception weiter. Die bis dahin
+ * gespeicherten Blöcke bleiben gespeichert.
+ */
+public class CsvPersonImporter {
+
+    public static final char DELIMITER = ';';
+    public static final char QUOTE = '"';
+    public static final String HEADER = "name;city;house";
+    public static final int MAX_REPORTED_REJECTS = 100;
+    public static final int MAX_RECORD_LINES = 10;
+    public static final int MAX_RECORD_LENGTH = 4096;
+
+    private final PersonRepository repository;
+    private final int batchSize;
+    private final int parseThreads;
+    private final int queueCapacity;
+
+    public CsvPersonImporter(PersonRepository repository) {
+        this(repository, repository.getBatchSize(), Runtime.getRuntime().availableProcessors(), 4);
+    }
+
+    public CsvPersonImporter(PersonRepository repository, int batchSize, int parseThreads, int queueCapacity) {
+        if (batchSize < 1 || parseThreads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("batchSize, parseThreads and queueCapacity must be positive");
+        }
+        this.repository = repository;
+        this.batchSize = batchSize;
+        this.parseThreads = parseThreads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public Result importFile(Path file) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+
+        ExecutorService parsers = Executors.newFixedThreadPool(parseThreads);
+        BlockingQueue<Future<ParsedBlock>> queue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> write(queue, result, failure), "csv-import-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            RecordReader records = new RecordReader(reader);
+            List<String> lines = new ArrayList<>(batchSize);
+            List<Long> lineNumbers = new ArrayList<>(batchSize);
+            String line;
+            while (failure.get() == null && (line = records.next()) != null) {
+                if (records.getLineNumber() == 1 && line.trim().equalsIgnoreCase(HEADER)) {
+                    continue;
+                }
+                lines.add(line);
+                lineNumbers.add(records.getLineNumber());
+                if (lines.size() == batchSize) {
+                    enqueue(queue, parsers, lines, lineNumbers);
+                    lines = new ArrayList<>(batchSize);
+                    lineNumbers = new ArrayList<>(batchSize);
+                }
+            }
+            if (!lines.isEmpty()) {
+                enqueue(queue, parsers, lines, lineNumbers);
+            }
+        } finally {
+            parsers.shutdown();
+            finish(queue, writer);
+        }
+
+        Throwable cause = failure.get();
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else if (cause != null) {
+            throw new IllegalStateException("import failed", cause);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Zerlegt eine Zeile ohne Regex und ohne String-Array in name, city und house.
+     * Leerzeichen rund um die Felder werden entfernt (siehe got2.csv), außer innerhalb von Anführungszeichen.
+     *
+     * @return die Person oder null, wenn die Zeile nicht genau drei Felder mit nicht-leerem Namen enthält
+     */
+    static Person parseLine(String line) {
+        if (line.indexOf(QUOTE) >= 0) {
+            return parseQuotedLine(line);
+        }
+        int first = line.indexOf(DELIMITER);
+        if (first < 0) {
+            return null;
+        }
+        int second = line.indexOf(DELIMITER, first + 1);
+        if (second < 0 || line.indexOf(DELIMITER, second + 1) >= 0) {
+            return null;
+        }
+        String name = field(line, 0, first);
+        if (name.isEmpty()) {
+            return null;
+        }
+        return new Person(name, field(line, first + 1, second), field(line, second + 1, line.length()));
+    }
+
+    private static Person parseQuotedLine(String line) {
+        String[] fields = new String[3];
+        int count = 0;
+        int length = line.length();
+        int i = 0;
+        while (true) {
+            int from = i;
+            while (i < length && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            String value;
+            if (i < length && line.charAt(i) == QUOTE) {
+                StringBuilder quoted = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= length) {
+                        return null;
+                    }
+                    char c = line.charAt(i++);
+                    if (c != QUOTE) {
+                        quoted.append(c);
+                    } else if (i < length && line.charAt(i) == QUOTE) {
+                        quoted.append(QUOTE);
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                while (i < length && Character.isWhitespace(line.charAt(i))) {
+                    i++;
+                }
+                if (i < length && line.charAt(i) != DELIMITER) {
+                    return null;
+                }
+                value = quoted.toString();
+            } else {
+                int end = line.indexOf(DELIMITER, i);
+                i = end < 0 ? length : end;
+                value = field(line, from, i);
+                if (value.indexOf(QUOTE) >= 0) {
+                    return null;
+                }
+            }
+            if (count == fields.length) {
+                return null;
+            }
+            fields[count++] = value;
+            if (i >= length) {
+                break;
+            }
+            i++;
+        }
+        if (count != fields.length || fields[0].isEmpty()) {
+            return null;
+        }
+        return new Person(fields[0], fields[1], fields[2]);
+    }
+
+    /**
+     * Stellt das Ende der Datei in die Queue (ohne den Parser-Pool, der nach einem Fehler schon beendet sein
+     * kann) und wartet auf den Writer. Wird der Leser dabei unterbrochen, wird auch der Writer unterbrochen.
+     */
+    private static void finish(BlockingQueue<Future<ParsedBlock>> queue, Thread writer) {
+        Future<ParsedBlock> endOfFile = CompletableFuture.completedFuture(new ParsedBlock());
+        try {
+            while (writer.isAlive() && !queue.offer(endOfFile, 100, TimeUnit.MILLISECONDS)) {
+                // der Writer leert die Queue, solange er läuft
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.interrupt();
+        }
+    }
+
+    /**
+     * Liest Datensätze: ein Feld in Anführungszeichen geht bis zum schließenden ", auch über Zeilenumbrüche.
+     * Ein Datensatz, der nach MAX_RECORD_LINES Zeilen oder MAX_RECORD_LENGTH Zeichen noch offen ist, wird auf
+     * seine erste Zeile gekürzt, die übrigen Zeilen werden danach wieder als eigene Datensätze gelesen.
+     */
+    private static class RecordReader {
+        private final BufferedReader reader;
+        private final Deque<String> pushedBack = new ArrayDeque<>();
+        private long nextLineNumber = 1;
+        private long lineNumber;
+
+        RecordReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return der nächste Datensatz oder null am Ende der Datei
+         */
+        String next() throws IOException {
+            lineNumber = nextLineNumber;
+            String first = readLine();
+            if (first == null || !hasOpenQuote(first)) {
+                return first;
+            }
+            StringBuilder record = new StringBuilder(first);
+            List<String> continuation = new ArrayList<>();
+            boolean open = true;
+            String next = "";
+            while (open && continuation.size() < MAX_RECORD_LINES - 1 && record.length() < MAX_RECORD_LENGTH
+                    && (next = readLine()) != null) {
+                continuation.add(next);
+                record.append('\n').append(next);
+                open = open != hasOpenQuote(next);
+            }
+            if (open && next != null) {
+                for (int i = continuation.size() - 1; i >= 0; i--) {
+                    pushedBack.addFirst(continuation.get(i));
+                    nextLineNumber--;
+                }
+                return first;
+            }
+            return record.toString();
+        }
+
+        /**
+         * @return die Nummer der ersten Zeile des zuletzt gelieferten Datensatzes
+         */
+        long getLineNumber() {
+            return lineNumber;
+        }
+
+        private String readLine() throws IOException {
+            String line = pushedBack.isEmpty() ? reader.readLine() : pushedBack.pollFirst();
+            if (line != null) {
+                nextLineNumber++;
+            }
+            return line;
+        }
+    }
+
+    /**
+     * @return true, wenn line eine ungerade Anzahl von " enthält
+     */
+    private static boolean hasOpenQuote(String line) {
+        int quotes = 0;
+        for (int i = line.indexOf(QUOTE); i >= 0; i = line.indexOf(QUOTE, i + 1)) {
+            quotes++;
+        }
+        return quotes % 2 != 0;
+    }
+
+    private static String field(String line, int from, int to) {
+        while (from < to && Character.isWhitespace(line.charAt(from))) {
+            from++;
+        }
+        while (to > from && Character.isWhitespace(line.charAt(to - 1))) {
+            to--;
+        }
+        return line.substring(from, to);
+    }
+
+    private void enqueue(BlockingQueue<Future<ParsedBlock>> queue, ExecutorService parsers,
+                         List<String> lines, List<Long> lineNumbers) {
+        Future<ParsedBlock> block = parsers.submit(() -> parse(lines, lineNumbers));
+        try {
+            queue.put(block);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("import interrupted", e);
+        }
+    }
+
+    private static ParsedBlock parse(List<String> lines, List<Long> lineNumbers) {
+        ParsedBlock block = new ParsedBlock();
+        block.persons = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            Person person = parseLine(lines.get(i));
+            if (person != null) {
+                block.persons.add(person);
+                block.lineNumbers.add(lineNumbers.get(i));
+            } else if (!lines.get(i).trim().isEmpty()) {
+                block.rejectedLineNumbers.add(lineNumbers.get(i));
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Writer-Stage: speichert die Blöcke in der Reihenfolge, in der sie gelesen wurden.
+     * Ein Block ohne Personenliste markiert das Ende der Datei.
+     * Nach einem Fehler wird die Queue nur noch bis zum Ende geleert, damit der Leser nie in put() hängt.
+     */
+    private void write(BlockingQueue<Future<ParsedBlock>> queue, Result result, AtomicReference<Throwable> failure) {
+        while (true) {
+            ParsedBlock block;
+            try {
+                block = queue.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+                return;
+            } catch (ExecutionException e) {
+                failure.compareAndSet(null, e.getCause());
+                continue;
+            }
+            if (block.persons == null) {
+                return;
+            }
+            if (failure.get() != null) {
+                continue;
+            }
+            try {
+                save(block, result);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /**
+     * Gezählt wird, was saveAll() tatsächlich gespeichert hat: Personen ohne id (z.B. Duplikate,
+     * die person_uq verletzen) zählen als failed.
+     */
+    private void save(ParsedBlock block, Result result) {
+        List<Person> saved = repository.saveAll(block.persons);
+        for (int i = 0; i < saved.size(); i++) {
+            if (saved.get(i).getId() != null) {
+                result.rows++;
+            } else {
+                result.failed++;
+                if (result.failedLineNumbers.size() < MAX_REPORTED_REJECTS) {
+                    result.failedLineNumbers.add(block.lineNumbers.get(i));
+                }
+            }
+        }
+        result.rejected += block.rejectedLineNumbers.size();
+        for (Long lineNumber : block.rejectedLineNumbers) {
+            if (result.rejectedLineNumbers.size() < MAX_REPORTED_REJECTS) {
+                result.rejectedLineNumbers.add(lineNumber);
+            }
+        }
+    }
+
+    private static class ParsedBlock {
+        List<Person> persons;
+        final List<Long> lineNumbers = new ArrayList<>();
+        final List<Long> rejectedLineNumbers = new ArrayList<>();
+    }
+
+    public static class Result {
+        private long rows;
+        private long rejected;
+        private long failed;
+        private final List<Long> rejectedLineNumbers = new ArrayList<>();
+        private final List<Long> failedLineNumbers = new ArrayList<>();
+        private long elapsedNanos;
+
+        /**
+         * @return die Anzahl der gespeicherten Zeilen
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return die Anzahl der Zeilen, die nicht geparst werden konnten
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return die Anzahl der geparsten Zeilen, die nicht gespeichert werden konnten
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return die Zeilennummern der ersten MAX_REPORTED_REJECTS abgelehnten Zeilen
+         */
+        public List<Long> getRejectedLineNumbers() {
+            return rejectedLineNumbers;
+        }
+
+        /**
+         * @return die Zeilennummern der ersten MAX_REPORTED_REJECTS nicht gespeicherten Zeilen
+         */
+        public List<Long> getFailedLineNumbers() {
+            return failedLineNumbers;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1_000_000;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows, %d rejected, %d failed, %d ms (%.0f rows/s)",
+                    rows, rejected, failed, getElapsedMillis(), getRowsPerSecond());
+        }
+    }
+}
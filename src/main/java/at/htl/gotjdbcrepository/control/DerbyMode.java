@@ -0,0 +1,32 @@
+package at.htl.gotjdbcrepository.control;
+
+/**
+ * Wie das PersonRepository auf Derby zugreift
+ */
+public enum DerbyMode {
+
+    /**
+     * über den Derby-Network-Server (derbyclient), der Server muss gestartet sein
+     */
+    NETWORK("jdbc:derby://localhost:1527/"),
+
+    /**
+     * Derby läuft im selben Prozess, die Datenbank liegt im Verzeichnis derby.system.home
+     */
+    EMBEDDED("jdbc:derby:"),
+
+    /**
+     * Derby läuft im selben Prozess, die Datenbank existiert nur im Hauptspeicher (z.B. für Tests)
+     */
+    MEMORY("jdbc:derby:memory:");
+
+    private final String prefix;
+
+    DerbyMode(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String url(String database) {
+        return prefix + database + ";create=true";
+    }
+}
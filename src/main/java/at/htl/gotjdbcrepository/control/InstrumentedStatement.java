@@ -0,0 +1,124 @@
+package at.htl.gotjdbcrepository.control;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Proxy um ein Statement, PreparedStatement oder CallableStatement, der die Bind-Parameter mitschreibt und
+ * jede Ausführung (execute, executeQuery, executeUpdate, executeBatch) mit Dauer, betroffenen Zeilen und
+ * eventuellem Fehler an einen StatementObserver meldet.
+ * <p>
+ * Bei einem einfachen Statement ist das SQL das Argument von execute...(sql), bei executeBatch() die mit
+ * "; " verbundenen SQL-Texte aus addBatch(sql).
+ */
+class InstrumentedStatement implements InvocationHandler {
+
+    /**
+     * Wird vom ConnectionPool nach jeder Ausführung eines Statements aufgerufen
+     */
+    interface StatementObserver {
+        /**
+         * @param rows betroffene Zeilen bei Updates, -1 bei Abfragen
+         * @param error null, wenn die Ausführung erfolgreich war
+         */
+        void executed(String sql, List<Object> parameters, long nanos, int rows, SQLException error);
+    }
+
+    private final Statement statement;
+    private final String sql;
+    private final StatementObserver observer;
+    private final List<Object> parameters = new ArrayList<>();
+    private final List<String> batch = new ArrayList<>();
+
+    private InstrumentedStatement(Statement statement, String sql, StatementObserver observer) {
+        this.statement = statement;
+        this.sql = sql;
+        this.observer = observer;
+    }
+
+    /**
+     * @param type das JDBC-Interface des Proxys (Statement, PreparedStatement oder CallableStatement)
+     * @param sql der SQL-Text eines PreparedStatements, null bei einem einfachen Statement
+     */
+    static <T extends Statement> T wrap(T statement, Class<T> type, String sql, StatementObserver observer) {
+        return type.cast(Proxy.newProxyInstance(
+                InstrumentedStatement.class.getClassLoader(),
+                new Class<?>[]{type},
+                new InstrumentedStatement(statement, sql, observer)));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+            setParameter((Integer) args[0], name.equals("setNull") ? null : args[1]);
+        } else if (name.equals("clearParameters")) {
+            parameters.clear();
+        } else if (name.equals("addBatch") && args != null && args.length == 1 && args[0] instanceof String) {
+            batch.add((String) args[0]);
+        } else if (name.equals("clearBatch")) {
+            batch.clear();
+        } else if (name.startsWith("execute")) {
+            if (args == null || args.length == 0) {
+                String executed = sql;
+                if (executed == null) {
+                    executed = String.join("; ", batch);
+                    batch.clear();
+                }
+                return execute(method, args, executed);
+            }
+            if (args[0] instanceof String) {
+                return execute(method, args, (String) args[0]);
+            }
+        }
+        return invokeTarget(method, args);
+    }
+
+    private Object execute(Method method, Object[] args, String sql) throws Throwable {
+        List<Object> boundParameters = new ArrayList<>(parameters);
+        long start = System.nanoTime();
+        try {
+            Object result = invokeTarget(method, args);
+            observer.executed(sql, boundParameters, System.nanoTime() - start, rows(result), null);
+            return result;
+        } catch (SQLException e) {
+            observer.executed(sql, boundParameters, System.nanoTime() - start, 0, e);
+            throw e;
+        }
+    }
+
+    private Object invokeTarget(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(statement, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void setParameter(int index, Object value) {
+        while (parameters.size() < index) {
+            parameters.add(null);
+        }
+        parameters.set(index - 1, value);
+    }
+
+    private static int rows(Object result) {
+        if (result instanceof Integer) {
+            return (Integer) result;
+        }
+        if (result instanceof int[]) {
+            int rows = 0;
+            for (int count : (int[]) result) {
+                rows += Math.max(count, 0);
+            }
+            return rows;
+        }
+        return -1;
+    }
+}
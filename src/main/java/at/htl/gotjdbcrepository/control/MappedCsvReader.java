@@ -0,0 +1,403 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Liest Dateien im Format von got.csv (name;city;house) über Memory-Mapping.
+ * <p>
+ * Die Datei wird in Segmenten von höchstens segmentSize Bytes gemappt, jedes Segment endet an einem
+ * Zeilenende. Ein Segment wird in Blöcke von etwa chunkSize Bytes (ebenfalls an Zeilenenden) zerlegt,
+ * die parallel in einem ForkJoinPool geparst werden. Zeilen- und Feldgrenzen werden direkt in den
+ * gemappten Bytes gesucht, ohne Regex und ohne String pro Zeile.
+ * <p>
+ * city und house wiederholen sich sehr oft: Sie werden über eine Tabelle pro Block, die direkt mit den
+ * Bytes vergleicht, nur beim ersten Auftreten in einen String umgewandelt und über alle Blöcke hinweg
+ * auf eine gemeinsame Instanz abgebildet.
+ * <p>
+ * Die Personen eines Segments werden in Dateireihenfolge an den Consumer übergeben, der Speicherverbrauch
+ * hängt daher von segmentSize ab und nicht von der Dateigröße.
+ * Felder werden wie in CsvPersonImporter.parseLine() getrimmt und geprüft. Zeilen mit Feldern in
+ * Anführungszeichen werden mit CsvPersonImporter.parseLine() geparst; Felder mit Zeilenumbrüchen
+ * (über mehrere Zeilen) werden nicht unterstützt und als ungültig gezählt.
+ */
+public class MappedCsvReader {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private static final byte DELIMITER = (byte) CsvPersonImporter.DELIMITER;
+    private static final byte QUOTE = (byte) CsvPersonImporter.QUOTE;
+
+    private final int segmentSize;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+    private final ConcurrentMap<String, String> canonical = new ConcurrentHashMap<>();
+
+    public MappedCsvReader() {
+        this(DEFAULT_SEGMENT_SIZE, DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    public MappedCsvReader(int segmentSize, int chunkSize, ForkJoinPool pool) {
+        if (chunkSize < 1 || segmentSize < chunkSize) {
+            throw new IllegalArgumentException("chunkSize must be positive and not larger than segmentSize");
+        }
+        this.segmentSize = segmentSize;
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+    }
+
+    /**
+     * Liest die ganze Datei in eine Liste (nur für Dateien, die in den Speicher passen)
+     */
+    public List<Person> readAll(Path file) throws IOException {
+        List<Person> persons = new ArrayList<>();
+        read(file, persons::addAll);
+        return persons;
+    }
+
+    /**
+     * Speichert die Datei segmentweise mit saveAll() im Repository.
+     * rows zählt nur die gespeicherten Personen, jene ohne id (z.B. Duplikate) zählen als failed.
+     */
+    public Result importFile(PersonRepository repository, Path file) throws IOException {
+        AtomicLong failed = new AtomicLong();
+        Result result = read(file, persons -> {
+            for (Person person : repository.saveAll(persons)) {
+                if (person.getId() == null) {
+                    failed.incrementAndGet();
+                }
+            }
+        });
+        result.failed = failed.get();
+        result.rows -= result.failed;
+        return result;
+    }
+
+    public Result read(Path file, Consumer<List<Person>> consumer) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            boolean first = true;
+            while (position < size) {
+                int length = (int) Math.min(segmentSize, size - position);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int end = length;
+                if (position + length < size) {
+                    end = lastLineEnd(segment, length);
+                    if (end == 0) {
+                        throw new IOException("line at byte " + position + " is longer than the segment size");
+                    }
+                }
+                int from = 0;
+                if (first) {
+                    from = skipHeader(segment, end);
+                    first = false;
+                }
+                List<Person> persons = parse(segment, from, end, result);
+                if (!persons.isEmpty()) {
+                    consumer.accept(persons);
+                }
+                position += end;
+            }
+            result.bytes = size;
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private List<Person> parse(MappedByteBuffer segment, int from, int end, Result result) {
+        List<ParseTask> tasks = new ArrayList<>();
+        int chunkStart = from;
+        while (chunkStart < end) {
+            int chunkEnd = chunkStart + chunkSize >= end ? end : nextLineStart(segment, chunkStart + chunkSize, end);
+            tasks.add(new ParseTask(segment, chunkStart, chunkEnd));
+            chunkStart = chunkEnd;
+        }
+        pool.invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                ForkJoinTask.invokeAll(tasks);
+                return null;
+            }
+        });
+
+        int rows = 0;
+        for (ParseTask task : tasks) {
+            rows += task.join().size();
+        }
+        List<Person> persons = new ArrayList<>(rows);
+        for (ParseTask task : tasks) {
+            persons.addAll(task.join());
+            result.rejected += task.rejected;
+        }
+        result.rows += rows;
+        return persons;
+    }
+
+    private static int lastLineEnd(MappedByteBuffer segment, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (segment.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int nextLineStart(MappedByteBuffer segment, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (segment.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private static int skipHeader(MappedByteBuffer segment, int end) {
+        int lineEnd = nextLineStart(segment, 0, end);
+        byte[] line = new byte[lineEnd];
+        for (int i = 0; i < lineEnd; i++) {
+            line[i] = segment.get(i);
+        }
+        String header = new String(line, StandardCharsets.UTF_8).trim();
+        return header.equalsIgnoreCase(CsvPersonImporter.HEADER) ? lineEnd : 0;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Parst einen Block von ganzen Zeilen
+     */
+    private class ParseTask extends RecursiveTask<List<Person>> {
+        private static final long serialVersionUID = 1L;
+
+        private final MappedByteBuffer buffer;
+        private final int from;
+        private final int to;
+        private final FieldTable fields = new FieldTable();
+        private byte[] scratch = new byte[256];
+        private int rejected;
+
+        ParseTask(MappedByteBuffer buffer, int from, int to) {
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Person> compute() {
+            List<Person> persons = new ArrayList<>();
+            int lineStart = from;
+            while (lineStart < to) {
+                int first = -1;
+                int second = -1;
+                int delimiters = 0;
+                boolean quoted = false;
+                int i = lineStart;
+                byte b;
+                while (i < to && (b = buffer.get(i)) != '\n') {
+                    if (b == QUOTE) {
+                        quoted = true;
+                    } else if (b == DELIMITER) {
+                        if (delimiters == 0) {
+                            first = i;
+                        } else if (delimiters == 1) {
+                            second = i;
+                        }
+                        delimiters++;
+                    }
+                    i++;
+                }
+                if (quoted) {
+                    Person person = CsvPersonImporter.parseLine(decode(lineStart, i));
+                    if (person != null) {
+                        persons.add(person);
+                    } else {
+                        rejected++;
+                    }
+                } else if (delimiters == 2) {
+                    Person person = toPerson(lineStart, first, second, i);
+                    if (person != null) {
+                        persons.add(person);
+                    } else {
+                        rejected++;
+                    }
+                } else if (!isBlank(lineStart, i)) {
+                    rejected++;
+                }
+                lineStart = i + 1;
+            }
+            return persons;
+        }
+
+        private Person toPerson(int lineStart, int first, int second, int lineEnd) {
+            int[] name = trim(lineStart, first);
+            if (name[0] == name[1]) {
+                return null;
+            }
+            int[] city = trim(first + 1, second);
+            int[] house = trim(second + 1, lineEnd);
+            return new Person(decode(name[0], name[1]),
+                    fields.get(city[0], city[1]),
+                    fields.get(house[0], house[1]));
+        }
+
+        private int[] trim(int start, int end) {
+            while (start < end && isWhitespace(buffer.get(start))) {
+                start++;
+            }
+            while (end > start && isWhitespace(buffer.get(end - 1))) {
+                end--;
+            }
+            return new int[]{start, end};
+        }
+
+        private boolean isBlank(int start, int end) {
+            int[] trimmed = trim(start, end);
+            return trimmed[0] == trimmed[1];
+        }
+
+        private String decode(int start, int end) {
+            int length = end - start;
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                scratch[i] = buffer.get(start + i);
+            }
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Hashtabelle mit offener Adressierung von Byte-Folgen auf Strings. Der Vergleich läuft direkt
+         * gegen den gemappten Buffer, ein String entsteht nur beim ersten Auftreten eines Wertes im Block.
+         */
+        private class FieldTable {
+            private byte[][] keys = new byte[64][];
+            private String[] values = new String[64];
+            private int size;
+
+            String get(int start, int end) {
+                int hash = 1;
+                for (int i = start; i < end; i++) {
+                    hash = 31 * hash + buffer.get(i);
+                }
+                int mask = keys.length - 1;
+                int slot = hash & mask;
+                while (keys[slot] != null) {
+                    if (matches(keys[slot], start, end)) {
+                        return values[slot];
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                byte[] key = new byte[end - start];
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = buffer.get(start + i);
+                }
+                String value = new String(key, StandardCharsets.UTF_8);
+                String shared = canonical.putIfAbsent(value, value);
+                value = shared != null ? shared : value;
+                keys[slot] = key;
+                values[slot] = value;
+                if (++size * 2 > keys.length) {
+                    resize();
+                }
+                return value;
+            }
+
+            private boolean matches(byte[] key, int start, int end) {
+                if (key.length != end - start) {
+                    return false;
+                }
+                for (int i = 0; i < key.length; i++) {
+                    if (key[i] != buffer.get(start + i)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            private void resize() {
+                byte[][] oldKeys = keys;
+                String[] oldValues = values;
+                keys = new byte[oldKeys.length * 2][];
+                values = new String[oldKeys.length * 2];
+                int mask = keys.length - 1;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != null) {
+                        int hash = 1;
+                        for (byte b : oldKeys[i]) {
+                            hash = 31 * hash + b;
+                        }
+                        int slot = hash & mask;
+                        while (keys[slot] != null) {
+                            slot = (slot + 1) & mask;
+                        }
+                        keys[slot] = oldKeys[i];
+                        values[slot] = oldValues[i];
+                    }
+                }
+            }
+        }
+    }
+
+    public static class Result {
+        private long rows;
+        private long rejected;
+        private long failed;
+        private long bytes;
+        private long elapsedNanos;
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return bei importFile() die Anzahl der geparsten Zeilen, die nicht gespeichert werden konnten
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1_000_000;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows, %d rejected, %d failed, %d bytes, %d ms (%.0f rows/s)",
+                    rows, rejected, failed, bytes, getElapsedMillis(), getRowsPerSecond());
+        }
+    }
+}
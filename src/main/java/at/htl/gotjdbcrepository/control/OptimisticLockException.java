@@ -0,0 +1,27 @@
+package at.htl.gotjdbcrepository.control;
+
+/**
+ * Wird von save() geworfen, wenn eine Person seit dem Lesen von jemand anderem geändert wurde
+ * (die version in der Tabelle stimmt nicht mehr mit der version der Person überein).
+ */
+public class OptimisticLockException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long personId;
+    private final int expectedVersion;
+
+    public OptimisticLockException(long personId, int expectedVersion) {
+        super(String.format("person %d was modified concurrently (expected version %d)", personId, expectedVersion));
+        this.personId = personId;
+        this.expectedVersion = expectedVersion;
+    }
+
+    public long getPersonId() {
+        return personId;
+    }
+
+    public int getExpectedVersion() {
+        return expectedVersion;
+    }
+}
@@ -0,0 +1,251 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Verteilt die Tabelle person auf n Derby-Datenbanken (Partitionen), jede mit eigenem Transaktions-Log
+ * und eigenem PersonRepository.
+ * <p>
+ * Globale ids: die Tabelle in Partition p vergibt die ids p + 1, p + 1 + n, p + 1 + 2n, ...
+ * Die ids sind damit über alle Partitionen eindeutig, und die Partition einer id ist (id - 1) mod n.
+ * <p>
+ * - save(), find(), delete() mit id gehen direkt an die Partition der id
+ * - neue Personen (ohne id) gehen an die Partition des Hashwerts von name, city und house,
+ *   damit person_uq auch über Partitionen hinweg doppelte Personen verhindert
+ *   (ändert ein Update name, city oder house, bleibt die Person in ihrer Partition)
+ * - saveAll(), findAll() werden nach Partition gruppiert und parallel ausgeführt
+ * - findByHouse(), findByCity(), deleteAll() laufen parallel auf allen Partitionen (Scatter-Gather)
+ * <p>
+ * Die Datenbanken müssen vom PartitionedPersonRepository angelegt werden und immer in derselben
+ * Reihenfolge angegeben werden, sonst stimmen die ids nicht mit den Partitionen überein.
+ */
+public class PartitionedPersonRepository implements Repository, AutoCloseable {
+
+    private final List<PersonRepository> partitions = new ArrayList<>();
+    private final ExecutorService executor;
+
+    /**
+     * @param databasePrefix die Datenbanken heißen databasePrefix_0 bis databasePrefix_(n-1)
+     */
+    public PartitionedPersonRepository(DerbyMode mode, String databasePrefix, int partitionCount) {
+        this(IntStream.range(0, partitionCount)
+                .mapToObj(i -> mode.url(databasePrefix + "_" + i))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * @param urls eine JDBC-URL pro Partition, z.B. Network-Server auf verschiedenen Ports
+     */
+    public PartitionedPersonRepository(List<String> urls) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("at least one partition is required");
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(urls.size(), r -> {
+            Thread thread = new Thread(r, "person-partition-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < urls.size(); i++) {
+            partitions.add(PersonRepository.openPartition(urls.get(i), i + 1, urls.size()));
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    public PersonRepository getPartition(int index) {
+        return partitions.get(index);
+    }
+
+    public int partitionOf(long id) {
+        return (int) Math.floorMod(id - 1, (long) partitions.size());
+    }
+
+    /**
+     * @return die Partition der id, bei neuen Personen die Partition des natürlichen Schlüssels
+     */
+    public int partitionOf(Person person) {
+        if (person.getId() != null) {
+            return partitionOf(person.getId());
+        }
+        return Math.floorMod(person.hashCode(), partitions.size());
+    }
+
+    @Override
+    public Person save(Person person) {
+        return partitions.get(partitionOf(person)).save(person);
+    }
+
+    @Override
+    public List<Person> saveAll(Collection<Person> persons) {
+        List<Person> saved = new ArrayList<>(persons);
+        // die Konflikte aller Partitionen gemeinsam melden
+        List<BatchFailedException> failures = gather(groupByPartition(saved, this::partitionOf), (partition, group) -> {
+            try {
+                partition.saveAll(group);
+                return null;
+            } catch (BatchFailedException e) {
+                return e;
+            }
+        });
+        List<Person> failed = new ArrayList<>();
+        List<Exception> causes = new ArrayList<>();
+        for (BatchFailedException failure : failures) {
+            if (failure != null) {
+                failed.addAll(failure.getFailed());
+                causes.add((Exception) failure.getCause());
+                for (Throwable suppressed : failure.getSuppressed()) {
+                    causes.add((Exception) suppressed);
+                }
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new BatchFailedException(failed, causes);
+        }
+        return saved;
+    }
+
+    @Override
+    public void delete(long id) {
+        partitions.get(partitionOf(id)).delete(id);
+    }
+
+    public Person find(long id) {
+        return partitions.get(partitionOf(id)).find(id);
+    }
+
+    public Map<Long, Person> findAll(Collection<Long> ids) {
+        List<Long> nonNull = ids.stream().filter(id -> id != null).collect(Collectors.toList());
+        Map<Long, Person> found = new HashMap<>();
+        gather(groupByPartition(nonNull, this::partitionOf), PersonRepository::findAll).forEach(found::putAll);
+        return found;
+    }
+
+    /**
+     * @return die Personen aller Partitionen, nach id sortiert
+     */
+    public List<Person> findByHouse(String house) {
+        return merge(scatter(partition -> partition.findByHouse(house)));
+    }
+
+    /**
+     * @return die Personen aller Partitionen, nach id sortiert
+     */
+    public List<Person> findByCity(String city) {
+        return merge(scatter(partition -> partition.findByCity(city)));
+    }
+
+    /**
+     * @return Anzahl der Personen pro Haus, summiert über alle Partitionen
+     */
+    public Map<String, Long> countByHouse() {
+        return sum(scatter(PersonRepository::countByHouse));
+    }
+
+    public Map<String, Long> countByCity() {
+        return sum(scatter(PersonRepository::countByCity));
+    }
+
+    public long countByHouse(String house) {
+        return scatter(partition -> partition.countByHouse(house)).stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * @return die n Häuser mit den meisten Personen über alle Partitionen
+     */
+    public Map<String, Long> topHouses(int n) {
+        return countByHouse().entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .limit(n)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> a, LinkedHashMap::new));
+    }
+
+    public void deleteAll() {
+        scatter(partition -> {
+            partition.deleteAll();
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        partitions.forEach(PersonRepository::close);
+    }
+
+    private <T> Map<Integer, List<T>> groupByPartition(List<T> values, Function<T, Integer> partitionOf) {
+        Map<Integer, List<T>> groups = new HashMap<>();
+        for (T value : values) {
+            groups.computeIfAbsent(partitionOf.apply(value), key -> new ArrayList<>()).add(value);
+        }
+        return groups;
+    }
+
+    /**
+     * Führt operation parallel für jede Gruppe auf ihrer Partition aus
+     */
+    private <T, R> List<R> gather(Map<Integer, List<T>> groups, BiFunction<PersonRepository, List<T>, R> operation) {
+        List<CompletableFuture<R>> futures = new ArrayList<>();
+        groups.forEach((index, group) -> futures.add(
+                CompletableFuture.supplyAsync(() -> operation.apply(partitions.get(index), group), executor)));
+        return join(futures);
+    }
+
+    /**
+     * Führt query parallel auf allen Partitionen aus
+     */
+    private <R> List<R> scatter(Function<PersonRepository, R> query) {
+        List<CompletableFuture<R>> futures = new ArrayList<>();
+        for (PersonRepository partition : partitions) {
+            futures.add(CompletableFuture.supplyAsync(() -> query.apply(partition), executor));
+        }
+        return join(futures);
+    }
+
+    private static <R> List<R> join(List<CompletableFuture<R>> futures) {
+        List<R> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<R> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return results;
+    }
+
+    private static Map<String, Long> sum(List<Map<String, Long>> results) {
+        Map<String, Long> sum = new HashMap<>();
+        results.forEach(counts -> counts.forEach((name, count) -> sum.merge(name, count, Long::sum)));
+        return sum;
+    }
+
+    private static List<Person> merge(List<List<Person>> results) {
+        return results.stream()
+                .flatMap(List::stream)
+                .sorted(Comparator.comparing(Person::getId))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,208 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Erstbefüllung der Tabelle person aus Dateien im Format von got.csv mit der Derby-Prozedur
+ * SYSCS_UTIL.SYSCS_IMPORT_DATA. Das ist deutlich schneller als JDBC-Inserts, besonders in eine leere Tabelle.
+ * <p>
+ * Die Datei wird zuerst in eine temporäre Datei ohne Kopfzeile, mit getrimmten und in Anführungszeichen
+ * gesetzten Feldern umgeschrieben. Derby liest diese Datei selbst ein, sie muss daher auf dem Rechner des
+ * Datenbankservers liegen (Embedded Derby oder Network-Server auf localhost), und der Security-Manager des
+ * Network-Servers muss das Lesen des Temp-Verzeichnisses erlauben (z.B. Start mit -noSecurityManager).
+ * <p>
+ * Enthält die Datei ungültige Zeilen oder schlägt der Import fehl (z.B. wegen doppelter Personen,
+ * der Import ist dann vollständig zurückgerollt), wird die Datei mit dem CsvPersonImporter
+ * über JDBC-Batches geladen.
+ * <p>
+ * Alle Abfragen und der Import laufen über eigene Verbindungen aus dem Pool, auch innerhalb von
+ * PersonRepository.inTransaction(): SYSCS_IMPORT_DATA committet seine Verbindung und würde sonst die offene
+ * Transaktion des Aufrufers mit committen.
+ * <p>
+ * Die Anzahl der geladenen Personen kommt beim Import aus der umgeschriebenen Datei (der Import ist alles
+ * oder nichts), beim Fallback aus dem Ergebnis des CsvPersonImporter. Gleichzeitige Inserts anderer
+ * Threads werden daher nicht mitgezählt, können aber im id-Bereich firstId..lastId liegen.
+ */
+public class PersonBulkLoader {
+
+    private static final String IMPORT_SQL = "CALL SYSCS_UTIL.SYSCS_IMPORT_DATA(NULL, ?, 'NAME,CITY,HOUSE', NULL, ?, ';', '\"', 'UTF-8', 0)";
+    private static final String LOADED_RANGE_SQL = "SELECT MIN(id), MAX(id) FROM " + PersonRepository.TABLE_NAME + " WHERE id > ?";
+
+    private final PersonRepository repository;
+
+    public PersonBulkLoader(PersonRepository repository) {
+        this.repository = repository;
+    }
+
+    public Result load(Path csvFile) throws IOException {
+        long start = System.nanoTime();
+        long maxIdBefore = maxId();
+
+        boolean imported = false;
+        long count = 0;
+        Path normalized = Files.createTempFile("person-import", ".csv");
+        try {
+            long rows = normalize(csvFile, normalized);
+            if (rows >= 0) {
+                imported = importData(normalized);
+                count = rows;
+            }
+        } finally {
+            Files.deleteIfExists(normalized);
+        }
+        if (!imported) {
+            count = new CsvPersonImporter(repository).importFile(csvFile).getRows();
+        }
+
+        Result result = loadedRange(maxIdBefore);
+        result.count = count;
+        result.usedImportProcedure = imported;
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * @return die Anzahl der geschriebenen Zeilen, -1 wenn die Datei ungültige Zeilen enthält und daher
+     *         nicht direkt importiert werden kann
+     */
+    static long normalize(Path source, Path target) throws IOException {
+        long rows = 0;
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line != null && !line.trim().equalsIgnoreCase(CsvPersonImporter.HEADER)) {
+                if (!writeNormalized(writer, line)) {
+                    return -1;
+                }
+                rows++;
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                if (!writeNormalized(writer, line)) {
+                    return -1;
+                }
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    private static boolean writeNormalized(BufferedWriter writer, String line) throws IOException {
+        Person person = CsvPersonImporter.parseLine(line);
+        if (person == null) {
+            return false;
+        }
+        writer.write(quote(person.getName()));
+        writer.write(';');
+        writer.write(quote(person.getCity()));
+        writer.write(';');
+        writer.write(quote(person.getHouse()));
+        writer.newLine();
+        return true;
+    }
+
+    private static String quote(String field) {
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    private boolean importData(Path file) {
+        try (Connection conn = repository.getConnectionPool().getConnection();
+             CallableStatement cstmt = conn.prepareCall(IMPORT_SQL)) {
+            cstmt.setString(1, PersonRepository.TABLE_NAME.toUpperCase());
+            cstmt.setString(2, file.toAbsolutePath().toString());
+            cstmt.execute();
+            return true;
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    private long maxId() {
+        try (Connection conn = repository.getConnectionPool().getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(id) FROM " + PersonRepository.TABLE_NAME)) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+            return 0;
+        }
+    }
+
+    private Result loadedRange(long maxIdBefore) {
+        Result result = new Result();
+        try (Connection conn = repository.getConnectionPool().getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(LOADED_RANGE_SQL)) {
+            pstmt.setLong(1, maxIdBefore);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                rs.next();
+                result.firstId = rs.getLong(1);
+                result.lastId = rs.getLong(2);
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        return result;
+    }
+
+    public static class Result {
+        private long count;
+        private long firstId;
+        private long lastId;
+        private boolean usedImportProcedure;
+        private long elapsedNanos;
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return die kleinste geladene id (oder eine kleinere von einem gleichzeitigen Insert),
+         *         0 wenn nichts geladen wurde
+         */
+        public long getFirstId() {
+            return firstId;
+        }
+
+        /**
+         * @return die größte geladene id (oder eine größere von einem gleichzeitigen Insert),
+         *         0 wenn nichts geladen wurde
+         */
+        public long getLastId() {
+            return lastId;
+        }
+
+        /**
+         * @return true, wenn SYSCS_IMPORT_DATA verwendet wurde, false beim Fallback auf JDBC-Batches
+         */
+        public boolean isUsedImportProcedure() {
+            return usedImportProcedure;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1_000_000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows (id %d..%d) in %d ms via %s", count, firstId, lastId,
+                    getElapsedMillis(), usedImportProcedure ? "SYSCS_IMPORT_DATA" : "JDBC batches");
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+/**
+ * Read-Through-Cache für PersonRepository.find(long).
+ * <p>
+ * - höchstens maxSize Personen, die am längsten nicht gelesene wird verdrängt (LRU)
+ * - ein Eintrag ist ttlMillis lang gültig
+ * - das Repository ruft bei jedem Schreibzugriff invalidate() bzw. invalidateAll() auf
+ * <p>
+ * Person ist veränderbar, daher werden im Cache Kopien gespeichert und Kopien zurückgegeben.
+ * Damit ein Ladevorgang, der parallel zu einem Schreibzugriff läuft, keinen veralteten Datensatz
+ * in den Cache schreibt, wird bei jeder Invalidierung eine Generation hochgezählt.
+ */
+public class PersonCache {
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Map<Long, Entry> entries;
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+
+    public PersonCache(int maxSize, long ttlMillis) {
+        if (maxSize < 1 || ttlMillis < 1) {
+            throw new IllegalArgumentException("maxSize and ttlMillis must be positive");
+        }
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<Long, PersonCache.Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, PersonCache.Entry> eldest) {
+                if (size() > PersonCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Liefert die Person aus dem Cache oder lädt sie mit loader und legt sie im Cache ab
+     *
+     * @return eine Kopie der gecachten Person oder null, wenn loader null liefert
+     */
+    public Person get(long id, LongFunction<Person> loader) {
+        long now = System.currentTimeMillis();
+        long loadGeneration;
+        synchronized (this) {
+            Entry entry = entries.get(id);
+            if (entry != null && entry.expiresAt > now) {
+                hits.increment();
+                return copy(entry.person);
+            }
+            if (entry != null) {
+                entries.remove(id);
+            }
+            misses.increment();
+            loadGeneration = generation.get();
+        }
+
+        long start = System.nanoTime();
+        Person loaded = loader.apply(id);
+        loadNanos.add(System.nanoTime() - start);
+        loads.increment();
+
+        if (loaded != null) {
+            synchronized (this) {
+                if (generation.get() == loadGeneration) {
+                    entries.put(id, new Entry(copy(loaded), System.currentTimeMillis() + ttlMillis));
+                }
+            }
+        }
+        return loaded;
+    }
+
+    public synchronized void invalidate(long id) {
+        generation.incrementAndGet();
+        entries.remove(id);
+    }
+
+    public synchronized void invalidateAll() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return durchschnittliche Dauer eines Ladevorgangs aus der Datenbank in Mikrosekunden
+     */
+    public double getAverageLoadMicros() {
+        long count = loads.sum();
+        return count == 0 ? 0 : loadNanos.sum() / 1000.0 / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d, hitRatio=%.2f, evictions=%d, avgLoad=%.0f µs",
+                size(), getHitRatio(), getEvictions(), getAverageLoadMicros());
+    }
+
+    private static Person copy(Person person) {
+        Person copy = new Person(person.getName(), person.getCity(), person.getHouse());
+        copy.setId(person.getId());
+        copy.setVersion(person.getVersion());
+        return copy;
+    }
+
+    private static class Entry {
+        final Person person;
+        final long expiresAt;
+
+        Entry(Person person, long expiresAt) {
+            this.person = person;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exportiert die Tabelle person parallel in eine Datei.
+ * <p>
+ * Der Bereich MIN(id)..MAX(id) wird in gleich große id-Bereiche geteilt. Jeder Bereich wird von einem
+ * eigenen Thread über eine eigene Verbindung aus dem Pool gelesen und in einen Direct-ByteBuffer kodiert,
+ * volle Buffer werden mit einem FileChannel in eine Teildatei geschrieben. Zum Schluss werden die
+ * Teildateien in id-Reihenfolge mit transferTo() an die Zieldatei angehängt.
+ * <p>
+ * Standardmäßig liest jeder Bereich den committeten Stand zum Zeitpunkt seiner Abfrage; Schreibzugriffe
+ * während des Exports sind daher eventuell nur in einem Teil der Bereiche enthalten, Personen mit einer id
+ * über MAX(id) beim Start fehlen. Derby kennt keinen gemeinsamen Snapshot über mehrere Verbindungen. Wer
+ * einen einheitlichen Stand braucht, übergibt consistent = true: dann hält eine weitere Verbindung während
+ * des ganzen Exports eine Share-Sperre auf die Tabelle person. Andere Leser laufen weiter, ALLE Schreiber
+ * (auch saveAll(), delete() und der WriteBehindBuffer) warten aber bis zum Ende des Exports.
+ * <p>
+ * Ohne Angabe verwendet der Export höchstens die Hälfte der Verbindungen des Pools (DEFAULT_POOL_SHARE),
+ * damit die Anwendung währenddessen weiterarbeiten kann.
+ * <p>
+ * Formate:
+ * - CSV: wie got.csv (Kopfzeile name;city;house, ohne id). Felder mit ;, " oder Zeilenumbruch werden in
+ *   Anführungszeichen gesetzt, " wird verdoppelt (CsvPersonImporter liest sie so wieder ein).
+ * - BINARY: MAGIC, dann pro Person die id (long) und name, city, house jeweils als Länge (int, -1 für null)
+ *   und UTF-8-Bytes. Mit readBinary() wieder einlesbar.
+ */
+public class PersonExporter {
+
+    public enum Format {
+        CSV, BINARY
+    }
+
+    public static final int MAGIC = 0x474f5450; // "GOTP"
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    /**
+     * Höchstens dieser Anteil der Verbindungen des Pools wird ohne Angabe von threads verwendet
+     */
+    public static final double DEFAULT_POOL_SHARE = 0.5;
+
+    private static final String RANGE_SQL = "SELECT id, name, city, house FROM " + PersonRepository.TABLE_NAME +
+            " WHERE id >= ? AND id <= ? ORDER BY id";
+
+    private final PersonRepository repository;
+    private final int threads;
+    private final int bufferSize;
+    private final boolean consistent;
+
+    public PersonExporter(PersonRepository repository) {
+        this(repository, defaultThreads(repository.getConnectionPool()), DEFAULT_BUFFER_SIZE);
+    }
+
+    public PersonExporter(PersonRepository repository, int threads, int bufferSize) {
+        this(repository, threads, bufferSize, false);
+    }
+
+    /**
+     * @param consistent true: Share-Sperre auf person während des ganzen Exports, blockiert alle Schreiber;
+     *                   der Pool braucht dann threads + 1 Verbindungen
+     */
+    public PersonExporter(PersonRepository repository, int threads, int bufferSize, boolean consistent) {
+        if (threads < 1 || bufferSize < 1024) {
+            throw new IllegalArgumentException("threads must be positive and bufferSize at least 1024");
+        }
+        this.repository = repository;
+        this.threads = threads;
+        this.bufferSize = bufferSize;
+        this.consistent = consistent;
+    }
+
+    /**
+     * Anzahl der Prozessoren, aber höchstens DEFAULT_POOL_SHARE der Verbindungen des Pools
+     * (abzüglich der Verbindung für eine eventuelle Sperre)
+     */
+    static int defaultThreads(ConnectionPool pool) {
+        int share = (int) (pool.getMaxSize() * DEFAULT_POOL_SHARE) - 1;
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), share));
+    }
+
+    public Result export(Path target, Format format) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        try {
+            if (consistent) {
+                exportLocked(target, format, result);
+            } else {
+                long[] bounds;
+                try (Connection conn = repository.getConnection()) {
+                    bounds = idBounds(conn);
+                }
+                exportRanges(bounds, target, format, result);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void exportLocked(Path target, Format format, Result result) throws IOException, SQLException {
+        try (Connection lock = repository.getConnection()) {
+            lock.setAutoCommit(false);
+            try {
+                try (Statement stmt = lock.createStatement()) {
+                    stmt.execute("LOCK TABLE " + PersonRepository.TABLE_NAME + " IN SHARE MODE");
+                }
+                exportRanges(idBounds(lock), target, format, result);
+            } finally {
+                lock.commit();
+            }
+        }
+    }
+
+    private void exportRanges(long[] bounds, Path target, Format format, Result result) throws IOException {
+        List<Path> parts = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> rows = new ArrayList<>();
+            if (bounds != null) {
+                long rangeSize = (bounds[1] - bounds[0]) / threads + 1;
+                for (long from = bounds[0]; from <= bounds[1]; from += rangeSize) {
+                    Path part = Files.createTempFile("person-export", ".part");
+                    parts.add(part);
+                    long to = Math.min(from + rangeSize - 1, bounds[1]);
+                    long rangeStart = from;
+                    rows.add(workers.submit(() -> exportRange(rangeStart, to, part, format)));
+                }
+            }
+            for (Future<Long> count : rows) {
+                result.rows += count.get();
+            }
+            result.bytes = concat(parts, target, format);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("export interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("export failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+            for (Path part : parts) {
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+
+    /**
+     * Liest eine mit Format.BINARY exportierte Datei
+     */
+    public static List<Person> readBinary(Path file) throws IOException {
+        List<Person> persons = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+            buffer.flip();
+            if (!ensure(channel, buffer, Integer.BYTES) || buffer.getInt() != MAGIC) {
+                throw new IOException("not a person export: " + file);
+            }
+            while (ensure(channel, buffer, Long.BYTES)) {
+                long id = buffer.getLong();
+                Person person = new Person(readString(channel, buffer), readString(channel, buffer),
+                        readString(channel, buffer));
+                person.setId(id);
+                persons.add(person);
+            }
+        }
+        return persons;
+    }
+
+    private static long[] idBounds(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MIN(id), MAX(id) FROM " + PersonRepository.TABLE_NAME)) {
+            rs.next();
+            long min = rs.getLong(1);
+            return rs.wasNull() ? null : new long[]{min, rs.getLong(2)};
+        }
+    }
+
+    private long exportRange(long from, long to, Path part, Format format) throws IOException, SQLException {
+        long rows = 0;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Connection conn = repository.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(RANGE_SQL)) {
+            pstmt.setFetchSize(repository.getFetchSize());
+            pstmt.setLong(1, from);
+            pstmt.setLong(2, to);
+            boolean csv = format == Format.CSV;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    byte[] name = bytes(csv ? csvField(rs.getString(2)) : rs.getString(2));
+                    byte[] city = bytes(csv ? csvField(rs.getString(3)) : rs.getString(3));
+                    byte[] house = bytes(csv ? csvField(rs.getString(4)) : rs.getString(4));
+                    int length = csv
+                            ? length(name) + length(city) + length(house) + 3
+                            : Long.BYTES + 3 * Integer.BYTES + length(name) + length(city) + length(house);
+                    if (buffer.remaining() < length) {
+                        drain(channel, buffer);
+                        if (buffer.remaining() < length) {
+                            throw new IOException("row " + rs.getLong(1) + " does not fit into the buffer");
+                        }
+                    }
+                    if (csv) {
+                        putCsv(buffer, name, city, house);
+                    } else {
+                        buffer.putLong(rs.getLong(1));
+                        putBinary(buffer, name);
+                        putBinary(buffer, city);
+                        putBinary(buffer, house);
+                    }
+                    rows++;
+                }
+            }
+            drain(channel, buffer);
+        }
+        return rows;
+    }
+
+    private static long concat(List<Path> parts, Path target, Format format) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = format == Format.CSV
+                    ? ByteBuffer.wrap((CsvPersonImporter.HEADER + '\n').getBytes(StandardCharsets.UTF_8))
+                    : ByteBuffer.allocate(Integer.BYTES).putInt(0, MAGIC);
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            for (Path part : parts) {
+                try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+                    long position = 0;
+                    long size = in.size();
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+            return out.size();
+        }
+    }
+
+    /**
+     * Setzt ein Feld in Anführungszeichen, wenn es das Trennzeichen, " oder einen Zeilenumbruch enthält
+     * (oder mit Leerzeichen beginnt bzw. endet, die beim Einlesen sonst entfernt würden)
+     */
+    static String csvField(String value) {
+        if (value == null || value.isEmpty()) {
+            return value;
+        }
+        boolean quote = Character.isWhitespace(value.charAt(0))
+                || Character.isWhitespace(value.charAt(value.length() - 1));
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == CsvPersonImporter.DELIMITER || c == CsvPersonImporter.QUOTE || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            return value;
+        }
+        String quoteString = String.valueOf(CsvPersonImporter.QUOTE);
+        return quoteString + value.replace(quoteString, quoteString + quoteString) + quoteString;
+    }
+
+    private static void putCsv(ByteBuffer buffer, byte[] name, byte[] city, byte[] house) {
+        if (name != null) {
+            buffer.put(name);
+        }
+        buffer.put((byte) CsvPersonImporter.DELIMITER);
+        if (city != null) {
+            buffer.put(city);
+        }
+        buffer.put((byte) CsvPersonImporter.DELIMITER);
+        if (house != null) {
+            buffer.put(house);
+        }
+        buffer.put((byte) '\n');
+    }
+
+    private static void putBinary(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+    }
+
+    private static String readString(FileChannel channel, ByteBuffer buffer) throws IOException {
+        if (!ensure(channel, buffer, Integer.BYTES)) {
+            throw new EOFException("truncated person export");
+        }
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (!ensure(channel, buffer, length)) {
+            throw new EOFException("truncated person export");
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sorgt dafür, dass mindestens bytes Bytes im Buffer lesbar sind.
+     *
+     * @return false, wenn die Datei vorher zu Ende ist
+     */
+    private static boolean ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+        if (bytes > buffer.capacity()) {
+            throw new IOException("record larger than the read buffer");
+        }
+        buffer.compact();
+        try {
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    return false;
+                }
+            }
+        } finally {
+            buffer.flip();
+        }
+        return true;
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] value) {
+        return value == null ? 0 : value.length;
+    }
+
+    public static class Result {
+        private long rows;
+        private long bytes;
+        private long elapsedNanos;
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1_000_000;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows, %d bytes, %d ms (%.0f rows/s)",
+                    rows, bytes, getElapsedMillis(), getRowsPerSecond());
+        }
+    }
+}
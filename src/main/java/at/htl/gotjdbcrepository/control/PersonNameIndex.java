@@ -0,0 +1,455 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+import at.htl.gotjdbcrepository.entity.PersonChange;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Namenssuche im Speicher für PersonRepository.searchByName(), ohne LIKE '%...%' (Full Table Scan).
+ * <p>
+ * - Präfixe: sortierte Map von jedem Wortanfang des Namens ("tyrion lannister", "lannister") auf die ids,
+ *   eine Präfixsuche ist ein Bereich dieser Map
+ * - Teilstrings: Trigramm-Index (je drei aufeinanderfolgende Zeichen) auf sortierte id-Listen. Die Listen
+ *   aller Trigramme der Anfrage werden geschnitten, die Kandidaten mit contains() geprüft
+ * Verglichen wird ohne Groß-/Kleinschreibung.
+ * <p>
+ * Die Suche liest einen unveränderlichen Stand (Data) aus einem volatile-Feld, ohne Sperre und ohne
+ * Datenbankzugriff. Aktualisiert wird im Hintergrund über das Änderungsprotokoll (findChangesSince()):
+ * Hat sich getModificationCount() des Repositories geändert oder liegt die letzte Prüfung mehr als
+ * REFRESH_INTERVAL_MILLIS zurück (Änderungen anderer Repositories und Prozesse), stößt die Suche das
+ * Aktualisieren an und verwendet bis dahin den alten Stand. Die neuen Änderungen werden gelesen, die Namen
+ * der betroffenen Personen neu geladen und in eine Kopie übernommen, die danach atomar ausgetauscht wird
+ * (die Maps werden flach kopiert, nur geänderte id-Listen neu angelegt). Damit sind auch saveAll(),
+ * upsertAll(), bulkLoad(), deleteAll() und zurückgerollte Transaktionen richtig abgebildet. refresh()
+ * wartet auf die Aktualisierung. Innerhalb von inTransaction() sieht die Suche nur committete Namen.
+ * <p>
+ * Das Änderungsprotokoll sollte erst nach refresh() mit deleteChangesUpTo(getLastSequence()) gekürzt werden.
+ * Wurden noch nicht übernommene Änderungen gelöscht, lädt refresh() alle Namen neu: über dieses Repository
+ * ist das bekannt, bei anderen Prozessen erkennbar daran, dass die älteste Änderung im Protokoll nicht direkt
+ * auf getLastSequence() folgt (im Zweifel, da auch zurückgerollte Änderungen Lücken hinterlassen).
+ */
+public class PersonNameIndex {
+
+    public static final int GRAM_LENGTH = 3;
+    public static final int REFRESH_BATCH_SIZE = 10_000;
+    public static final long REFRESH_INTERVAL_MILLIS = 1_000;
+
+    private static final String SELECT_NAMES_SQL = "SELECT id, name FROM " + PersonRepository.TABLE_NAME;
+
+    private static final ExecutorService REFRESHER = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "person-name-index-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final PersonRepository repository;
+    private final AtomicReference<CompletableFuture<Void>> pending = new AtomicReference<>();
+    private volatile Data data = new Data();
+
+    private PersonNameIndex(PersonRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Lädt die Namen aller Personen. Änderungen während des Ladens werden beim nächsten refresh() nachgeholt.
+     */
+    public static PersonNameIndex build(PersonRepository repository) throws SQLException {
+        PersonNameIndex index = new PersonNameIndex(repository);
+        index.reload();
+        return index;
+    }
+
+    /**
+     * Zuerst Personen, bei denen ein Wort des Namens mit query beginnt (alphabetisch), dann Personen,
+     * deren Name query enthält (nach id).
+     *
+     * @return höchstens limit ids
+     */
+    public List<Long> search(String query, int limit) {
+        String normalized = normalize(query);
+        if (normalized == null || normalized.isEmpty() || limit < 1) {
+            return new ArrayList<>();
+        }
+        Data current = data;
+        if (current.modificationCount != repository.getModificationCount()
+                || System.nanoTime() - current.checkedAt >= TimeUnit.MILLISECONDS.toNanos(REFRESH_INTERVAL_MILLIS)) {
+            refreshAsync();
+        }
+
+        Set<Long> ids = new LinkedHashSet<>();
+        for (Postings postings : current.prefixes.subMap(normalized, true, normalized + Character.MAX_VALUE, true).values()) {
+            if (postings.addTo(ids, limit)) {
+                return new ArrayList<>(ids);
+            }
+        }
+        if (normalized.length() >= GRAM_LENGTH) {
+            addContaining(current, normalized, ids, limit);
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Übernimmt alle Änderungen aus dem Änderungsprotokoll, die vor dem Aufruf committet wurden, und wartet darauf
+     */
+    public void refresh() {
+        long requested = System.nanoTime();
+        refreshAsync().join();
+        // die laufende Aktualisierung hat eventuell vor dem Aufruf begonnen
+        if (data.checkedAt - requested < 0) {
+            refreshAsync().join();
+        }
+    }
+
+    /**
+     * Startet das Aktualisieren im Hintergrund, sofern es nicht bereits läuft
+     */
+    public CompletableFuture<Void> refreshAsync() {
+        while (true) {
+            CompletableFuture<Void> running = pending.get();
+            if (running != null) {
+                return running;
+            }
+            CompletableFuture<Void> next = new CompletableFuture<>();
+            if (pending.compareAndSet(null, next)) {
+                REFRESHER.execute(() -> {
+                    try {
+                        update();
+                        pending.compareAndSet(next, null);
+                        next.complete(null);
+                    } catch (RuntimeException e) {
+                        pending.compareAndSet(next, null);
+                        next.completeExceptionally(e);
+                    }
+                });
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Läuft nur im Hintergrund-Thread von refreshAsync(), höchstens einmal gleichzeitig
+     */
+    private void update() {
+        Data current = data;
+        if (changesDeleted(current.lastSequence)) {
+            try {
+                reload();
+            } catch (SQLException e) {
+                System.err.println(e.getMessage());
+            }
+            return;
+        }
+        long modificationCount = repository.getModificationCount();
+        long checkedAt = System.nanoTime();
+        long sequence = current.lastSequence;
+        Editor editor = null;
+        List<PersonChange> changes;
+        do {
+            changes = repository.findChangesSince(sequence, REFRESH_BATCH_SIZE);
+            if (changes.isEmpty()) {
+                break;
+            }
+            Set<Long> ids = new LinkedHashSet<>();
+            changes.forEach(change -> ids.add(change.getPersonId()));
+            Map<Long, Person> persons = repository.findAll(ids);
+
+            if (editor == null) {
+                editor = new Editor(current);
+            }
+            for (Long id : ids) {
+                Person person = persons.get(id);
+                if (person != null) {
+                    editor.put(id, person.getName());
+                } else {
+                    editor.remove(id);
+                }
+            }
+            sequence = changes.get(changes.size() - 1).getSequence();
+        } while (changes.size() == REFRESH_BATCH_SIZE);
+        data = editor != null
+                ? editor.toData(sequence, modificationCount, checkedAt)
+                : new Data(current.names, current.prefixes, current.trigrams, sequence, modificationCount, checkedAt);
+    }
+
+    private boolean changesDeleted(long lastSequence) {
+        return repository.getChangesDeletedUpTo() > lastSequence
+                || repository.getOldestChangeSequence() > lastSequence + 1;
+    }
+
+    /**
+     * Ersetzt den Inhalt durch die Namen aller Personen. Die Suche sieht bis zum Ende des Ladens den alten Stand.
+     */
+    private void reload() throws SQLException {
+        long modificationCount = repository.getModificationCount();
+        long checkedAt = System.nanoTime();
+        // ist das Protokoll bis hierher gelöscht, folgen neue Änderungen trotzdem erst danach
+        long sequence = Math.max(repository.getLatestChangeSequence(), repository.getChangesDeletedUpTo());
+        Editor editor = new Editor(new Data());
+        try (Connection conn = repository.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(SELECT_NAMES_SQL)) {
+            pstmt.setFetchSize(1000);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    editor.put(rs.getLong(1), rs.getString(2));
+                }
+            }
+        }
+        data = editor.toData(sequence, modificationCount, checkedAt);
+    }
+
+    /**
+     * @return Anzahl der Personen mit Namen im Index
+     */
+    public int size() {
+        return data.names.size();
+    }
+
+    /**
+     * @return die Sequenznummer der letzten übernommenen Änderung
+     */
+    public long getLastSequence() {
+        return data.lastSequence;
+    }
+
+    private static void addContaining(Data data, String query, Set<Long> ids, int limit) {
+        List<Postings> lists = new ArrayList<>();
+        for (int i = 0; i + GRAM_LENGTH <= query.length(); i++) {
+            Postings postings = data.trigrams.get(trigram(query, i));
+            if (postings == null) {
+                return;
+            }
+            lists.add(postings);
+        }
+        lists.sort(Comparator.comparingInt(postings -> postings.size));
+        Postings smallest = lists.get(0);
+        for (int i = 0; i < smallest.size && ids.size() < limit; i++) {
+            long id = smallest.ids[i];
+            if (containsAll(lists, id) && data.names.get(id).contains(query)) {
+                ids.add(id);
+            }
+        }
+    }
+
+    private static boolean containsAll(List<Postings> lists, long id) {
+        for (int i = 1; i < lists.size(); i++) {
+            if (!lists.get(i).contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ein veröffentlichter Stand, wird nach dem Austausch nicht mehr verändert
+     */
+    private static final class Data {
+        final Map<Long, String> names;
+        final TreeMap<String, Postings> prefixes;
+        final Map<Long, Postings> trigrams;
+        final long lastSequence;
+        final long modificationCount;
+        final long checkedAt;
+
+        Data() {
+            this(new HashMap<>(), new TreeMap<>(), new HashMap<>(), 0, -1, System.nanoTime());
+        }
+
+        Data(Map<Long, String> names, TreeMap<String, Postings> prefixes, Map<Long, Postings> trigrams,
+             long lastSequence, long modificationCount, long checkedAt) {
+            this.names = names;
+            this.prefixes = prefixes;
+            this.trigrams = trigrams;
+            this.lastSequence = lastSequence;
+            this.modificationCount = modificationCount;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    /**
+     * Ändert eine Kopie eines Stands: die Maps werden flach kopiert, eine id-Liste wird erst beim ersten
+     * Ändern kopiert (danach gehört sie dem Editor und wird direkt geändert)
+     */
+    private static final class Editor {
+        final Map<Long, String> names;
+        final TreeMap<String, Postings> prefixes;
+        final Map<Long, Postings> trigrams;
+        final Set<Postings> owned = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        Editor(Data base) {
+            names = new HashMap<>(base.names);
+            prefixes = new TreeMap<>(base.prefixes);
+            trigrams = new HashMap<>(base.trigrams);
+        }
+
+        Data toData(long lastSequence, long modificationCount, long checkedAt) {
+            return new Data(names, prefixes, trigrams, lastSequence, modificationCount, checkedAt);
+        }
+
+        void put(long id, String name) {
+            String normalized = normalize(name);
+            if (normalized == null) {
+                remove(id);
+                return;
+            }
+            String old = names.put(id, normalized);
+            if (normalized.equals(old)) {
+                return;
+            }
+            if (old != null) {
+                unindex(id, old);
+            }
+            for (String word : wordStarts(normalized)) {
+                editable(prefixes, word).add(id);
+            }
+            for (long trigram : trigrams(normalized)) {
+                editable(trigrams, trigram).add(id);
+            }
+        }
+
+        void remove(long id) {
+            String old = names.remove(id);
+            if (old != null) {
+                unindex(id, old);
+            }
+        }
+
+        private void unindex(long id, String name) {
+            for (String word : wordStarts(name)) {
+                remove(prefixes, word, id);
+            }
+            for (long trigram : trigrams(name)) {
+                remove(trigrams, trigram, id);
+            }
+        }
+
+        private <K> void remove(Map<K, Postings> map, K key, long id) {
+            Postings postings = map.get(key);
+            if (postings != null && postings.contains(id)) {
+                postings = editable(map, key);
+                postings.remove(id);
+                if (postings.size == 0) {
+                    map.remove(key);
+                }
+            }
+        }
+
+        private <K> Postings editable(Map<K, Postings> map, K key) {
+            Postings postings = map.get(key);
+            if (postings == null || !owned.contains(postings)) {
+                postings = postings == null ? new Postings() : postings.copy();
+                owned.add(postings);
+                map.put(key, postings);
+            }
+            return postings;
+        }
+    }
+
+    /**
+     * "tyrion lannister" -> "tyrion lannister", "lannister"
+     */
+    private static List<String> wordStarts(String name) {
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isWhitespace(name.charAt(i)) && (i == 0 || Character.isWhitespace(name.charAt(i - 1)))) {
+                words.add(name.substring(i));
+            }
+        }
+        return words;
+    }
+
+    private static Set<Long> trigrams(String name) {
+        Set<Long> grams = new LinkedHashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= name.length(); i++) {
+            grams.add(trigram(name, i));
+        }
+        return grams;
+    }
+
+    /**
+     * Drei chars (je 16 Bit) in einem long
+     */
+    private static long trigram(String name, int start) {
+        return (long) name.charAt(start) << 32 | (long) name.charAt(start + 1) << 16 | name.charAt(start + 2);
+    }
+
+    private static String normalize(String name) {
+        return name == null ? null : name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Aufsteigend sortierte ids ohne Boxing. Neue Personen haben die größten ids und werden angehängt.
+     */
+    private static final class Postings {
+        private long[] ids = new long[2];
+        private int size;
+
+        Postings copy() {
+            Postings copy = new Postings();
+            copy.ids = Arrays.copyOf(ids, Math.max(2, size));
+            copy.size = size;
+            return copy;
+        }
+
+        void add(long id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        boolean remove(long id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        /**
+         * @return true, wenn limit erreicht ist
+         */
+        boolean addTo(Set<Long> target, int limit) {
+            for (int i = 0; i < size; i++) {
+                target.add(ids[i]);
+                if (target.size() >= limit) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -1,36 +1,495 @@
 package at.htl.gotjdbcrepository.control;
 
 import at.htl.gotjdbcrepository.entity.Person;
+import at.htl.gotjdbcrepository.entity.PersonChange;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class PersonRepository implements Repository {
+public class PersonRepository implements Repository, AutoCloseable {
     public static final String USERNAME = "app";
     public static final String PASSWORD = "app";
     public static final String DATABASE = "db";
-    public static final String URL = "jdbc:derby://localhost:1527/" + DATABASE + ";create=true";
+    public static final String URL = DerbyMode.NETWORK.url(DATABASE);
+    public static final String MODE_PROPERTY = "gotjdbcrepository.mode";
+    public static final String DATABASE_PROPERTY = "gotjdbcrepository.database";
+    /**
+     * Einstellungen des Connection-Pools, z.B. -Dgotjdbcrepository.pool.maxSize=32; ohne Property gelten
+     * die Voreinstellungen POOL_MIN_SIZE usw.
+     */
+    public static final String POOL_MIN_SIZE_PROPERTY = "gotjdbcrepository.pool.minSize";
+    public static final String POOL_MAX_SIZE_PROPERTY = "gotjdbcrepository.pool.maxSize";
+    public static final String POOL_IDLE_TIMEOUT_PROPERTY = "gotjdbcrepository.pool.idleTimeoutMillis";
+    public static final String POOL_BORROW_TIMEOUT_PROPERTY = "gotjdbcrepository.pool.borrowTimeoutMillis";
+    public static final String POOL_VALIDATION_TIMEOUT_PROPERTY = "gotjdbcrepository.pool.validationTimeoutSeconds";
+    public static final String POOL_VALIDATION_INTERVAL_PROPERTY = "gotjdbcrepository.pool.validationIntervalMillis";
+    public static final String POOL_STATEMENT_CACHE_SIZE_PROPERTY = "gotjdbcrepository.pool.statementCacheSize";
+    /**
+     * Der Namensindex für searchByName() wird beim Erzeugen des Repositories aufgebaut,
+     * -Dgotjdbcrepository.nameIndex=false schaltet das ab
+     */
+    public static final String NAME_INDEX_PROPERTY = "gotjdbcrepository.nameIndex";
     public static final String TABLE_NAME = "person";
+    public static final String HOUSE_INDEX_NAME = TABLE_NAME + "_house_idx";
+    public static final String CITY_INDEX_NAME = TABLE_NAME + "_city_idx";
+    public static final String CHANGE_TABLE_NAME = TABLE_NAME + "_change";
+    public static final String STATS_TABLE_NAME = TABLE_NAME + "_stats";
+    public static final String STATS_LOCK_TABLE_NAME = STATS_TABLE_NAME + "_lock";
+
+    public static final int POOL_MIN_SIZE = 2;
+    public static final int POOL_MAX_SIZE = 10;
+    public static final long POOL_IDLE_TIMEOUT_MILLIS = 60_000;
+    public static final long POOL_BORROW_TIMEOUT_MILLIS = 5_000;
+    public static final int POOL_VALIDATION_TIMEOUT_SECONDS = 2;
+    public static final long POOL_VALIDATION_INTERVAL_MILLIS = 5_000;
+    public static final int POOL_STATEMENT_CACHE_SIZE = 32;
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_FETCH_SIZE = 100;
+    public static final int STATS_COMPACT_THRESHOLD = 1000;
+    public static final long STATS_COMPACT_INTERVAL_MILLIS = 10_000;
+
+    private static final String INSERT_SQL = "INSERT INTO " + TABLE_NAME + " (name, city, house) VALUES (?,?,?)";
+    /**
+     * Compare-and-set: mit version = null wird ohne Versionsprüfung geändert
+     */
+    private static final String UPDATE_SQL = "UPDATE " + TABLE_NAME + " SET name=?, city=?, house=?, version=version+1" +
+            " WHERE id=? AND (version=? OR CAST(? AS INT) IS NULL)";
+    private static final String EXISTS_SQL = "SELECT 1 FROM " + TABLE_NAME + " WHERE id=?";
+    private static final String DELETE_SQL = "DELETE FROM " + TABLE_NAME + " WHERE id=?";
+    private static final String DELETE_ALL_SQL = "DELETE FROM " + TABLE_NAME;
+    private static final String COLUMNS = "id, name, city, house, version";
+    private static final String FIND_SQL = "SELECT " + COLUMNS + " FROM " + TABLE_NAME + " WHERE id=?";
+    private static final String FIND_BY_HOUSE_SQL = "SELECT " + COLUMNS + " FROM " + TABLE_NAME + " WHERE house=?";
+    private static final String FIND_BY_HOUSE_PAGE_SQL = "SELECT " + COLUMNS + " FROM " + TABLE_NAME +
+            " WHERE house=? AND id>? ORDER BY id FETCH FIRST ? ROWS ONLY";
+    /**
+     * findAll() verwendet nur IN-Listen dieser Längen, damit der StatementCache wenige verschiedene Statements hält
+     */
+    private static final int[] FIND_ALL_CHUNK_SIZES = {1, 4, 16, 64, 256};
+    private static final String[] FIND_ALL_SQL = new String[FIND_ALL_CHUNK_SIZES.length];
+    static {
+        for (int i = 0; i < FIND_ALL_CHUNK_SIZES.length; i++) {
+            FIND_ALL_SQL[i] = "SELECT " + COLUMNS + " FROM " + TABLE_NAME + " WHERE id IN (" +
+                    String.join(",", Collections.nCopies(FIND_ALL_CHUNK_SIZES[i], "?")) + ")";
+        }
+    }
+    private static final String FIND_BY_CITY_SQL = "SELECT " + COLUMNS + " FROM " + TABLE_NAME + " WHERE city=?";
+    private static final String SEARCH_BY_NAME_SQL = "SELECT " + COLUMNS + " FROM " + TABLE_NAME +
+            " WHERE LOWER(name) LIKE ? ESCAPE '\\' ORDER BY LOWER(name), id";
+
+    private static final String STAGING_TABLE = "SESSION." + TABLE_NAME + "_staging";
+    private static final String DECLARE_STAGING_SQL = "DECLARE GLOBAL TEMPORARY TABLE " + STAGING_TABLE +
+            " (name VARCHAR(255), city VARCHAR(255), house VARCHAR(255)) ON COMMIT DELETE ROWS NOT LOGGED";
+    private static final String INSERT_STAGING_SQL = "INSERT INTO " + STAGING_TABLE + " (name, city, house) VALUES (?,?,?)";
+    private static final String NATURAL_KEY_JOIN = " ON p.name = s.name AND p.city = s.city AND p.house = s.house";
+    private static final String MERGE_SQL = "MERGE INTO " + TABLE_NAME + " p USING " + STAGING_TABLE + " s" +
+            NATURAL_KEY_JOIN + " WHEN NOT MATCHED THEN INSERT (name, city, house) VALUES (s.name, s.city, s.house)";
+    private static final String FIND_STAGED_SQL = "SELECT p.id, p.name, p.city, p.house, p.version FROM " + TABLE_NAME + " p" +
+            " JOIN " + STAGING_TABLE + " s" + NATURAL_KEY_JOIN;
+
+    private static final String FIND_CHANGES_SQL = "SELECT seq, person_id, operation, changed_at FROM " + CHANGE_TABLE_NAME +
+            " WHERE seq > ? AND seq <= ? ORDER BY seq FETCH FIRST ? ROWS ONLY";
+
+    private static final String HOUSE = "H";
+    private static final String CITY = "C";
+    private static final String COUNT_SQL = "SELECT SUM(cnt) FROM " + STATS_TABLE_NAME + " WHERE kind=? AND name=?";
+    private static final String COUNTS_SQL = "SELECT name, SUM(cnt) FROM " + STATS_TABLE_NAME +
+            " WHERE kind=? GROUP BY name HAVING SUM(cnt) > 0";
+    private static final String COMPACT_STATS_SQL = "INSERT INTO " + STATS_TABLE_NAME + " (kind, name, cnt)" +
+            " SELECT kind, name, SUM(cnt) FROM " + STATS_TABLE_NAME + " WHERE seq <= ?" +
+            " GROUP BY kind, name HAVING SUM(cnt) <> 0";
+    private static final String DELETE_COMPACTED_STATS_SQL = "DELETE FROM " + STATS_TABLE_NAME + " WHERE seq <= ?";
+    private static final String TOP_SQL = "SELECT name, SUM(cnt) FROM " + STATS_TABLE_NAME +
+            " WHERE kind=? GROUP BY name HAVING SUM(cnt) > 0 ORDER BY 2 DESC, 1 FETCH FIRST ? ROWS ONLY";
+
+    /**
+     * SQLState von Derby, wenn eine Tabelle oder ein Index bereits existiert
+     */
+    private static final String SQL_STATE_ALREADY_EXISTS = "X0Y32";
 
     private static PersonRepository instance;
+    private static DerbyMode mode = DerbyMode.valueOf(System.getProperty(MODE_PROPERTY, "NETWORK").toUpperCase());
+    private static String database = System.getProperty(DATABASE_PROPERTY, DATABASE);
+
+    private final ConnectionPool connectionPool;
+    private final RepositoryMetrics metrics;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile int fetchSize = DEFAULT_FETCH_SIZE;
+    private volatile PersonCache personCache;
+    private final AtomicLong modificationCount = new AtomicLong();
+    private final int idStart;
+    private final int idIncrement;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private final ThreadLocal<Connection> transactionConnection = new ThreadLocal<>();
+    private volatile WriteBehindBuffer writeBehind;
+    private final ScheduledExecutorService statisticsCompactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "person-stats-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long compactedStatisticsRows;
+    private volatile PersonNameIndex nameIndex;
+    private volatile long changesDeletedUpTo;
 
     private PersonRepository() {
+        this(getUrl(), database, 1, 1);
+    }
+
+    /**
+     * @param name Name für JMX
+     * @param idStart erste id der Tabelle person
+     * @param idIncrement Abstand der ids (siehe PartitionedPersonRepository)
+     */
+    private PersonRepository(String url, String name, int idStart, int idIncrement) {
+        this.idStart = idStart;
+        this.idIncrement = idIncrement;
+        connectionPool = new ConnectionPool(url, USERNAME, PASSWORD,
+                Integer.getInteger(POOL_MIN_SIZE_PROPERTY, POOL_MIN_SIZE),
+                Integer.getInteger(POOL_MAX_SIZE_PROPERTY, POOL_MAX_SIZE),
+                Long.getLong(POOL_IDLE_TIMEOUT_PROPERTY, POOL_IDLE_TIMEOUT_MILLIS),
+                Long.getLong(POOL_BORROW_TIMEOUT_PROPERTY, POOL_BORROW_TIMEOUT_MILLIS),
+                Integer.getInteger(POOL_VALIDATION_TIMEOUT_PROPERTY, POOL_VALIDATION_TIMEOUT_SECONDS),
+                Long.getLong(POOL_VALIDATION_INTERVAL_PROPERTY, POOL_VALIDATION_INTERVAL_MILLIS),
+                Integer.getInteger(POOL_STATEMENT_CACHE_SIZE_PROPERTY, POOL_STATEMENT_CACHE_SIZE));
+        metrics = new RepositoryMetrics(connectionPool);
+        connectionPool.setStatementObserver(metrics);
+        metrics.registerMBean(name);
+        try {
+            connectionPool.warmUp();
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
     }
 
     public static synchronized PersonRepository getInstance() {
+        if (instance == null) {
+            instance = new PersonRepository();
+            instance.initialize();
+        }
+        return instance;
+    }
 
-        return null;
+    /**
+     * Ein eigenes Repository (kein Singleton) für eine Partition von PartitionedPersonRepository.
+     * Die Tabelle person vergibt die ids idStart, idStart + idIncrement, ...
+     */
+    static PersonRepository openPartition(String url, int idStart, int idIncrement) {
+        PersonRepository partition = new PersonRepository(url, url, idStart, idIncrement);
+        partition.initialize();
+        return partition;
+    }
+
+    private void initialize() {
+        createTable();
+        addVersionColumn();
+        createIndexes();
+        createChangeLog();
+        createStatistics();
+        statisticsCompactor.scheduleWithFixedDelay(this::compactStatisticsIfNeeded,
+                STATS_COMPACT_INTERVAL_MILLIS, STATS_COMPACT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (Boolean.parseBoolean(System.getProperty(NAME_INDEX_PROPERTY, "true"))) {
+            enableNameIndex();
+        }
+    }
+
+    /**
+     * Schreibt den Write-Behind-Puffer und schließt den Connection-Pool. Ist es die Instanz von
+     * getInstance(), liefert getInstance() danach eine neue.
+     */
+    @Override
+    public void close() {
+        synchronized (PersonRepository.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        statisticsCompactor.shutdownNow();
+        disableWriteBehind();
+        metrics.unregisterMBean();
+        connectionPool.close();
+    }
+
+    /**
+     * Legt fest, mit welcher Datenbank das Repository arbeitet. Voreingestellt ist der Network-Server
+     * (URL); die Voreinstellung kann mit den System-Properties gotjdbcrepository.mode
+     * (NETWORK, EMBEDDED, MEMORY) und gotjdbcrepository.database geändert werden.
+     *
+     * Eine bereits existierende Instanz wird geschlossen, getInstance() liefert danach eine neue.
+     */
+    public static synchronized void useDatabase(DerbyMode mode, String database) {
+        PersonRepository.mode = mode;
+        PersonRepository.database = database;
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    public static synchronized String getUrl() {
+        return mode.url(database);
+    }
+
+    /**
+     * Alle Methoden des Repositories holen sich ihre Verbindung aus dem Pool.
+     * Mit close() (try-with-resources) wird die Verbindung an den Pool zurückgegeben.
+     * Innerhalb von inTransaction() wird die Verbindung der Transaktion geliefert.
+     */
+    Connection getConnection() throws SQLException {
+        Connection transaction = transactionConnection.get();
+        return transaction != null ? transaction : connectionPool.getConnection();
+    }
+
+    /**
+     * inTransaction() mit Isolation-Level READ_COMMITTED (Voreinstellung von Derby)
+     */
+    public boolean inTransaction(Consumer<PersonRepository> work) {
+        return inTransaction(Connection.TRANSACTION_READ_COMMITTED, work);
+    }
+
+    /**
+     *
+     * Unit of Work: alle Methoden des Repositories, die work im aufrufenden Thread verwendet, laufen über
+     * eine einzige Verbindung und werden am Ende mit einem einzigen Commit (einem Log-Flush) gespeichert.
+     *
+     * Wirft work eine Exception, wird alles zurückgerollt und die Exception weitergeworfen.
+     * Achtung: die Methoden des Repositories geben SQL-Fehler nur aus, ein fehlgeschlagenes save()
+     * führt daher nicht zum Rollback. Personen behalten nach einem Rollback die vergebenen ids.
+     *
+     * Aufrufe in anderen Threads (z.B. AsyncPersonRepository) und bulkLoad() (SYSCS_IMPORT_DATA
+     * committet selbst) gehören nicht zur Transaktion. Ein verschachteltes inTransaction() läuft in der
+     * äußeren Transaktion mit deren Isolation-Level.
+     *
+     * @param isolationLevel z.B. Connection.TRANSACTION_SERIALIZABLE
+     * @param work z.B. tx -> { tx.save(jon); tx.delete(aryaId); }
+     * @return true, wenn committet wurde
+     */
+    public boolean inTransaction(int isolationLevel, Consumer<PersonRepository> work) {
+        if (transactionConnection.get() != null) {
+            work.accept(this);
+            return true;
+        }
+        long start = System.nanoTime();
+        boolean committed = false;
+        // ohne commit() rollt der Pool die Transaktion beim close() zurück
+        try (Connection conn = connectionPool.getConnection()) {
+            conn.setTransactionIsolation(isolationLevel);
+            conn.setAutoCommit(false);
+            transactionConnection.set(TransactionConnection.wrap(conn));
+            try {
+                work.accept(this);
+                conn.commit();
+                committed = true;
+            } finally {
+                transactionConnection.remove();
+                if (!committed) {
+                    // der Cache kann inzwischen Werte aus der zurückgerollten Transaktion enthalten
+                    PersonCache cache = personCache;
+                    if (cache != null) {
+                        cache.invalidateAll();
+                    }
+                    modificationCount.incrementAndGet();
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        metrics.recordOperation("transaction", start, committed ? 1 : 0);
+        return committed;
+    }
+
+    /**
+     * @return true, wenn der aufrufende Thread in inTransaction() läuft
+     */
+    boolean hasTransaction() {
+        return transactionConnection.get() != null;
+    }
+
+    ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * @return Latenzen, Zeilen und Fehler aller Methoden und SQL-Statements dieses Repositories
+     */
+    public RepositoryMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * @param fetchSize Anzahl der Zeilen, die bei den streamBy...-Methoden pro Roundtrip geholt werden
+     */
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("fetchSize must be positive: " + fetchSize);
+        }
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Schaltet den Cache für find(long) ein. Alle Schreibzugriffe über dieses Repository
+     * invalidieren die betroffenen Einträge.
+     */
+    public void enablePersonCache(int maxSize, long ttlMillis) {
+        personCache = new PersonCache(maxSize, ttlMillis);
+    }
+
+    public void disablePersonCache() {
+        personCache = null;
+    }
+
+    /**
+     * Schaltet den Write-Behind-Modus ein: save() puffert die Personen nur und kehrt sofort zurück,
+     * geschrieben wird im Hintergrund in Blöcken (siehe WriteBehindBuffer).
+     * find(id) liefert den gepufferten Stand, findByHouse() usw. sehen gepufferte Personen erst nach dem Flush.
+     * Innerhalb von inTransaction() wird nicht gepuffert.
+     *
+     * @param flushSize ab so vielen gepufferten Personen wird geschrieben
+     * @param flushIntervalMillis spätestens nach so vielen Millisekunden wird geschrieben
+     */
+    public synchronized void enableWriteBehind(int flushSize, long flushIntervalMillis) {
+        disableWriteBehind();
+        writeBehind = new WriteBehindBuffer(this, flushSize, flushIntervalMillis);
+    }
+
+    /**
+     * Schreibt den restlichen Puffer und schaltet den Write-Behind-Modus aus
+     */
+    public synchronized void disableWriteBehind() {
+        WriteBehindBuffer buffer = writeBehind;
+        writeBehind = null;
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
+    /**
+     * @return der Puffer oder null, wenn der Write-Behind-Modus ausgeschaltet ist
+     */
+    public WriteBehindBuffer getWriteBehindBuffer() {
+        return writeBehind;
+    }
+
+    /**
+     * Schreibt alle gepufferten Personen sofort
+     *
+     * @return Anzahl der geschriebenen Personen
+     */
+    public int flush() {
+        WriteBehindBuffer buffer = writeBehind;
+        return buffer != null ? buffer.flush() : 0;
+    }
+
+    /**
+     * Baut den Namensindex für searchByName() aus der Tabelle auf (standardmäßig beim Start der Anwendung,
+     * siehe NAME_INDEX_PROPERTY), ein bereits vorhandener Index wird ersetzt. Suchen laufen währenddessen weiter.
+     */
+    public void enableNameIndex() {
+        try {
+            nameIndex = PersonNameIndex.build(this);
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    public void disableNameIndex() {
+        nameIndex = null;
+    }
+
+    /**
+     * @return der Namensindex oder null, wenn er noch nicht aufgebaut wurde
+     */
+    public PersonNameIndex getNameIndex() {
+        return nameIndex;
+    }
+
+    /**
+     * @return der Cache für find(long) oder null, wenn er nicht eingeschaltet ist
+     */
+    public PersonCache getPersonCache() {
+        return personCache;
+    }
+
+    /**
+     * @return wird nach jedem Schreibzugriff über dieses Repository erhöht (siehe PersonSnapshotStore)
+     */
+    public long getModificationCount() {
+        return modificationCount.get();
+    }
+
+    /**
+     * Liefert einen Store, der Lesezugriffe aus einem Schnappschuss der Tabelle im Speicher beantwortet
+     *
+     * @param offHeap true, wenn die Spalten außerhalb des Java-Heaps liegen sollen
+     */
+    public PersonSnapshotStore snapshotStore(boolean offHeap) {
+        return new PersonSnapshotStore(this, offHeap);
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @param retryPolicy wie oft modify() bei einer OptimisticLockException erneut versucht wird
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    private void invalidate(Long id) {
+        PersonCache cache = personCache;
+        if (cache != null && id != null) {
+            cache.invalidate(id);
+        }
+        modificationCount.incrementAndGet();
     }
 
     private void createTable() {
-        try (Connection conn = DriverManager.getConnection(URL, USERNAME, PASSWORD)) {
+        try (Connection conn = getConnection()) {
             try (Statement stmt = conn.createStatement()) {
                 String sql = "CREATE TABLE " + TABLE_NAME + " (" +
-                        "id INT NOT NULL GENERATED ALWAYS AS IDENTITY CONSTRAINT " + TABLE_NAME + "_pk PRIMARY KEY," +
+                        "id INT NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH " + idStart + ", INCREMENT BY " + idIncrement + ")" +
+                        " CONSTRAINT " + TABLE_NAME + "_pk PRIMARY KEY," +
                         "name VARCHAR(255)," +
                         "city VARCHAR(255)," +
                         "house VARCHAR(255)," +
+                        "version INT NOT NULL DEFAULT 0," +
                         "CONSTRAINT " + TABLE_NAME + "_uq UNIQUE (name, city, house)" +
                         ")";
                 stmt.executeUpdate(sql);
@@ -41,8 +500,144 @@ public class PersonRepository implements Repository {
         }
     }
 
-    public void deleteAll() {
+    /**
+     * Tabellen, die vor der Einführung der Versionsspalte angelegt wurden
+     */
+    private void addVersionColumn() {
+        executeIfNotExists("ALTER TABLE " + TABLE_NAME + " ADD COLUMN version INT NOT NULL DEFAULT 0");
+    }
+
+    /**
+     * Legt die Sekundärindizes für findByHouse() und findByCity() an, falls sie noch nicht existieren.
+     * Die id ist im Index enthalten, damit das Keyset-Paging (ORDER BY id) ohne Sortierung auskommt.
+     */
+    private void createIndexes() {
+        createIndex(HOUSE_INDEX_NAME, "house, id");
+        createIndex(CITY_INDEX_NAME, "city, id");
+    }
 
+    private void createIndex(String indexName, String columns) {
+        executeIfNotExists("CREATE INDEX " + indexName + " ON " + TABLE_NAME + " (" + columns + ")");
+    }
+
+    /**
+     * Änderungsprotokoll: Trigger auf person schreiben jede eingefügte, geänderte und gelöschte Zeile
+     * in person_change. Damit werden auch Änderungen erfasst, die nicht über das Repository laufen,
+     * und der Eintrag wird in derselben Transaktion wie die Änderung geschrieben.
+     *
+     * Die seq wird beim Einfügen vergeben und steigt, kann aber Lücken haben (zurückgerollte Transaktionen),
+     * und eine kleinere seq kann nach einer größeren committet werden. findChangesSince() liefert daher nur
+     * Änderungen bis zu einer seq, unter der keine Transaktion mehr offen ist (siehe settledSequence()).
+     */
+    private void createChangeLog() {
+        executeIfNotExists("CREATE TABLE " + CHANGE_TABLE_NAME + " (" +
+                "seq BIGINT NOT NULL GENERATED ALWAYS AS IDENTITY CONSTRAINT " + CHANGE_TABLE_NAME + "_pk PRIMARY KEY," +
+                "person_id INT NOT NULL," +
+                "operation CHAR(1) NOT NULL," +
+                "changed_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
+                ")");
+        createChangeTrigger("insert", "INSERT", "NEW AS n", "n.id", "I");
+        createChangeTrigger("update", "UPDATE", "NEW AS n", "n.id", "U");
+        createChangeTrigger("delete", "DELETE", "OLD AS o", "o.id", "D");
+    }
+
+    private void createChangeTrigger(String name, String event, String referencing, String id, String operation) {
+        executeIfNotExists("CREATE TRIGGER " + TABLE_NAME + "_" + name + "_trg AFTER " + event + " ON " + TABLE_NAME +
+                " REFERENCING " + referencing + " FOR EACH ROW" +
+                " INSERT INTO " + CHANGE_TABLE_NAME + " (person_id, operation) VALUES (" + id + ", '" + operation + "')");
+    }
+
+    /**
+     * Anzahl der Personen pro Haus und pro Stadt in person_stats, gepflegt von Triggern auf person.
+     * Die Trigger ändern keine Zählerzeilen, sondern hängen nur Differenzen an:
+     * - INSERT: +1 für house und city
+     * - UPDATE von house oder city: -1 für die alten Werte, +1 für die neuen
+     * - DELETE: -1
+     * Die Zähler sind damit in derselben Transaktion wie die Änderung aktuell, auch bei saveAll(),
+     * upsertAll(), bulkLoad() und Zugriffen, die nicht über das Repository laufen. Da nur eingefügt wird,
+     * warten gleichzeitige Schreiber auf dasselbe Haus nicht aufeinander und können sich nicht verklemmen.
+     *
+     * Gelesen wird die Summe der Differenzen. Ein Hintergrund-Thread prüft alle STATS_COMPACT_INTERVAL_MILLIS
+     * Millisekunden, ob seit der letzten Zusammenfassung mehr als STATS_COMPACT_THRESHOLD Zeilen
+     * dazugekommen sind, und fasst sie dann mit compactStatistics() zusammen; Leser schreiben nie.
+     * Die leere Tabelle person_stats_lock sperrt compactStatistics() und rebuildStatistics() exklusiv, Leser
+     * gemeinsam: Leser warten kurz auf das Zusammenfassen, Schreiber (die Trigger) nie.
+     *
+     * Wurde die Tabelle oder ein Trigger neu angelegt (z.B. nach DROP TABLE person), werden die
+     * Zähler mit rebuildStatistics() neu berechnet.
+     */
+    private void createStatistics() {
+        boolean created = executeIfNotExists("CREATE TABLE " + STATS_TABLE_NAME + " (" +
+                "seq BIGINT NOT NULL GENERATED ALWAYS AS IDENTITY CONSTRAINT " + STATS_TABLE_NAME + "_pk PRIMARY KEY," +
+                "kind CHAR(1) NOT NULL," +
+                "name VARCHAR(255) NOT NULL," +
+                "cnt INT NOT NULL" +
+                ")");
+        executeIfNotExists("CREATE INDEX " + STATS_TABLE_NAME + "_idx ON " + STATS_TABLE_NAME + " (kind, name)");
+        executeIfNotExists("CREATE TABLE " + STATS_LOCK_TABLE_NAME + " (id INT)");
+        // Bewusst ohne UPDATE OF city, house: Derby 10.14 ordnet dann die Spalten von OLD/NEW falsch zu
+        // ("Invalid character string format for type long"); unveränderte Werte filtert die WHERE-Bedingung.
+        created |= createStatsTrigger("insert", "INSERT", "NEW AS n",
+                "('" + HOUSE + "', n.house, 1), ('" + CITY + "', n.city, 1)", "");
+        created |= createStatsTrigger("update", "UPDATE", "OLD AS o NEW AS n",
+                "('" + HOUSE + "', o.house, -1), ('" + HOUSE + "', n.house, 1)," +
+                        " ('" + CITY + "', o.city, -1), ('" + CITY + "', n.city, 1)",
+                " AND (t.kind <> '" + HOUSE + "' OR o.house IS NULL OR n.house IS NULL OR o.house <> n.house)" +
+                        " AND (t.kind <> '" + CITY + "' OR o.city IS NULL OR n.city IS NULL OR o.city <> n.city)");
+        created |= createStatsTrigger("delete", "DELETE", "OLD AS o",
+                "('" + HOUSE + "', o.house, -1), ('" + CITY + "', o.city, -1)", "");
+        if (created) {
+            rebuildStatistics();
+        }
+    }
+
+    /**
+     * @param deltas Zeilen (kind, name, cnt) als VALUES-Liste
+     * @param condition zusätzliche Bedingung für die Zeilen
+     */
+    private boolean createStatsTrigger(String name, String event, String referencing, String deltas, String condition) {
+        return executeIfNotExists("CREATE TRIGGER " + STATS_TABLE_NAME + "_" + name + "_trg AFTER " + event +
+                " ON " + TABLE_NAME + " REFERENCING " + referencing + " FOR EACH ROW" +
+                " INSERT INTO " + STATS_TABLE_NAME + " (kind, name, cnt)" +
+                " SELECT t.kind, t.name, t.cnt FROM (VALUES " + deltas + ") t(kind, name, cnt)" +
+                " WHERE t.name IS NOT NULL" + condition);
+    }
+
+    /**
+     * @return true, wenn ddl ausgeführt wurde, false wenn das Objekt schon existiert oder ein Fehler auftrat
+     */
+    private boolean executeIfNotExists(String ddl) {
+        try (Connection conn = getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(ddl);
+            return true;
+        } catch (SQLException e) {
+            if (!SQL_STATE_ALREADY_EXISTS.equals(e.getSQLState())) {
+                System.err.println(e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    public void deleteAll() {
+        long start = System.nanoTime();
+        WriteBehindBuffer buffer = writeBehind;
+        if (buffer != null) {
+            buffer.clear();
+        }
+        int rowsAffected = 0;
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(DELETE_ALL_SQL)) {
+            rowsAffected = pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        PersonCache cache = personCache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        modificationCount.incrementAndGet();
+        metrics.recordOperation("deleteAll", start, rowsAffected);
     }
 
     /**
@@ -56,64 +651,1196 @@ public class PersonRepository implements Repository {
      *
      * Verwenden sie hier die privaten MEthoden update() und insert()
      *
+     * Optimistisches Sperren: hat newPerson eine version (z.B. von find()), wird nur geändert, wenn die
+     * version in der Tabelle noch gleich ist; danach ist die version um 1 erhöht. Ohne version
+     * (version == null) wird ohne Prüfung überschrieben.
+     *
      * @param newPerson
      * @return die gespeicherte Person mit der (neuen) id
+     * @throws OptimisticLockException wenn die Person inzwischen von jemand anderem geändert wurde
      */
     @Override
     public Person save(Person newPerson) {
+        long start = System.nanoTime();
+        WriteBehindBuffer buffer = writeBehind;
+        if (buffer != null && transactionConnection.get() == null) {
+            buffer.add(newPerson);
+            metrics.recordOperation("saveBuffered", start, 1);
+            return newPerson;
+        }
+        Person saved;
+        try {
+            saved = store(newPerson);
+        } catch (OptimisticLockException e) {
+            metrics.recordOperation("save", start, 0);
+            metrics.recordOperationError("save");
+            throw e;
+        }
+        metrics.recordOperation("save", start, saved.getId() != null ? 1 : 0);
+        return saved;
+    }
 
-        return null;
+    /**
+     * save() ohne Write-Behind-Puffer: UPDATE, wenn es die id gibt, sonst INSERT.
+     * Schlägt das UPDATE fehl (z.B. Lock-Timeout, Verbindungsabbruch), wird die Person unverändert
+     * zurückgegeben und nicht als neuer Datensatz eingefügt.
+     */
+    private Person store(Person person) {
+        if (person.getId() != null) {
+            int rowsAffected = update(person);
+            if (rowsAffected != 0) {
+                return person;
+            }
+        }
+        return insert(person);
     }
 
     /**
      *
-     * Wie man die generierte ID erhält: https://stackoverflow.com/a/1915197
+     * Read-Modify-Write mit optimistischem Sperren: die Person wird (am Cache vorbei) gelesen, mit change
+     * geändert und mit Versionsprüfung gespeichert. Hat sie inzwischen jemand anderer geändert, wird sie
+     * gemäß RetryPolicy neu gelesen und change erneut angewendet.
+     * Im Write-Behind-Modus wird eine gepufferte Änderung der Person vorher geschrieben.
      *
-     * @param personToSave
-     * @return Rückgabe der Person inklusive der neu generierten ID
+     * @param id
+     * @param change darf mehrmals aufgerufen werden und die id nicht ändern
+     * @return die gespeicherte Person oder null, wenn es die id nicht gibt oder das UPDATE fehlschlägt
+     * @throws OptimisticLockException wenn auch der letzte Versuch kollidiert
      */
-    private Person insert(Person personToSave) {
-
-        return null;
+    public Person modify(long id, Consumer<Person> change) {
+        long start = System.nanoTime();
+        WriteBehindBuffer buffer = writeBehind;
+        if (buffer != null) {
+            buffer.flush(id);
+        }
+        RetryPolicy policy = retryPolicy;
+        for (int attempt = 1; ; attempt++) {
+            Person person = load(id);
+            if (person == null) {
+                metrics.recordOperation("modify", start, 0);
+                return null;
+            }
+            change.accept(person);
+            try {
+                int rowsAffected = update(person);
+                if (rowsAffected > 0) {
+                    metrics.recordOperation("modify", start, 1);
+                    return person;
+                }
+                if (rowsAffected < 0) {
+                    metrics.recordOperation("modify", start, 0);
+                    metrics.recordOperationError("modify");
+                    return null;
+                }
+            } catch (OptimisticLockException e) {
+                if (attempt >= policy.getMaxAttempts()) {
+                    metrics.recordOperation("modify", start, 0);
+                    metrics.recordOperationError("modify");
+                    throw e;
+                }
+                policy.backoff(attempt);
+            }
+        }
     }
 
     /**
      *
-     * @param personToSave
-     * @return wenn erfolgreich --> Anzahl der eingefügten Zeilen, also 1
-     *         wenn nicht erfolgreich --> -1
+     * Speichert mehrere Personen mit JDBC-Batches. Wie bei save() werden Personen mit id per UPDATE
+     * gespeichert, alle anderen (und jene, deren id nicht existiert) per INSERT.
+     *
+     * Pro Block von batchSize Personen wird genau eine Transaktion verwendet. UPDATEs und INSERTs laufen
+     * als JDBC-Batches, die neuen ids werden danach mit einer Abfrage über den natürlichen Schlüssel
+     * gelesen (siehe insertBatch()). Die Tabelle wird dabei nicht gesperrt.
+     *
+     * Schlägt ein Block fehl (z.B. wegen person_uq oder einer OptimisticLockException), wird er zurückgerollt
+     * und Person für Person gespeichert. Personen mit Versionskonflikt werden dabei übersprungen, alle
+     * übrigen Blöcke trotzdem gespeichert. Personen, die aus anderen Gründen nicht gespeichert werden
+     * konnten (z.B. Duplikate), haben danach keine id.
+     *
+     * Im Write-Behind-Modus werden gepufferte Änderungen dieser Personen verworfen, der übergebene Stand gilt.
+     *
+     * @param persons
+     * @return die gespeicherten Personen mit den (neuen) ids
+     * @throws BatchFailedException mit den Personen, deren version nicht mehr stimmt (die Ursachen sind
+     *         OptimisticLockExceptions), nachdem alle anderen gespeichert wurden
      */
-    private int update(Person personToSave) {
-
-        return -1;
-    }
-
     @Override
-    public void delete(long id) {
+    public List<Person> saveAll(Collection<Person> persons) {
+        WriteBehindBuffer buffer = writeBehind;
+        if (buffer != null) {
+            buffer.discard(persons);
+        }
+        return storeAll(persons);
+    }
 
+    /**
+     * saveAll() ohne den Write-Behind-Puffer, für WriteBehindBuffer.flush()
+     */
+    List<Person> storeAll(Collection<Person> persons) {
+        long start = System.nanoTime();
+        List<Person> saved = new ArrayList<>(persons);
+        List<Person> conflicts = new ArrayList<>();
+        List<OptimisticLockException> causes = new ArrayList<>();
+        int size = batchSize;
+        for (int from = 0; from < saved.size(); from += size) {
+            List<Person> chunk = saved.subList(from, Math.min(from + size, saved.size()));
+            try {
+                saveChunk(chunk);
+            } catch (SQLException | OptimisticLockException e) {
+                System.err.println(e.getMessage());
+                for (Person person : chunk) {
+                    try {
+                        store(person);
+                    } catch (OptimisticLockException conflict) {
+                        conflicts.add(person);
+                        causes.add(conflict);
+                    }
+                }
+            }
+            chunk.forEach(person -> invalidate(person.getId()));
+        }
+        metrics.recordOperation("saveAll", start, saved.size() - conflicts.size());
+        if (!conflicts.isEmpty()) {
+            throw new BatchFailedException(conflicts, causes);
+        }
+        return saved;
     }
 
     /**
      *
-     * Finden Sie eine Person anhand Ihrer ID
+     * Upsert über den natürlichen Schlüssel (name, city, house): Personen, die es bereits gibt, werden
+     * nicht noch einmal eingefügt (kein Fehler wegen person_uq), alle anderen werden eingefügt.
+     * Die id der Personen wird ignoriert und durch die id des Datensatzes in der Tabelle ersetzt.
      *
-     * @param id
-     * @return die gefundene Person oder wenn nicht gefunden wird null zurückgegeben
+     * Pro Block von batchSize Personen werden die Zeilen in eine temporäre Tabelle
+     * (SESSION.person_staging) geschrieben und mit einem einzigen MERGE übernommen.
+     * Schlägt ein Block fehl, wird er zurückgerollt und mit den übrigen Blöcken weitergemacht.
+     *
+     * @param persons
+     * @return die Personen mit der id des (bestehenden oder neuen) Datensatzes
+     * @throws IllegalArgumentException wenn name, city oder house einer Person null ist: person_uq erlaubt
+     *         mehrere NULL-Werte, solche Personen würden bei jedem Aufruf erneut eingefügt
+     * @throws BatchFailedException wenn Blöcke fehlgeschlagen sind (die ids ihrer Personen bleiben unverändert)
      */
-    public Person find(long id) {
+    public List<Person> upsertAll(Collection<Person> persons) {
+        long start = System.nanoTime();
+        for (Person person : persons) {
+            if (person.getName() == null || person.getCity() == null || person.getHouse() == null) {
+                throw new IllegalArgumentException("name, city and house must not be null: " + person);
+            }
+        }
+        List<Person> upserted = new ArrayList<>(persons);
+        List<Person> failed = new ArrayList<>();
+        List<SQLException> causes = new ArrayList<>();
+        int size = batchSize;
+        for (int from = 0; from < upserted.size(); from += size) {
+            List<Person> chunk = upserted.subList(from, Math.min(from + size, upserted.size()));
+            try {
+                upsertChunk(chunk);
+            } catch (SQLException e) {
+                System.err.println(e.getMessage());
+                failed.addAll(chunk);
+                causes.add(e);
+            }
+        }
+        modificationCount.incrementAndGet();
+        metrics.recordOperation("upsertAll", start, upserted.size() - failed.size());
+        if (!failed.isEmpty()) {
+            throw new BatchFailedException(failed, causes);
+        }
+        return upserted;
+    }
 
-        return null;
+    private void upsertChunk(List<Person> chunk) throws SQLException {
+        // gleiche Personen nur einmal in die Staging-Tabelle, sonst würde MERGE sie doppelt einfügen
+        Map<Person, List<Person>> byNaturalKey = new LinkedHashMap<>();
+        for (Person person : chunk) {
+            byNaturalKey.computeIfAbsent(person, key -> new ArrayList<>()).add(person);
+        }
+
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                stage(conn, byNaturalKey.keySet());
+                // bewusst kein PreparedStatement: fügt ein vorbereitetes MERGE keine Zeile ein, bricht der
+                // Derby-Network-Server (10.14) beim Senden der Warnung die Verbindung ab
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate(MERGE_SQL);
+                }
+                List<Person> stored = findStaged(conn);
+                conn.commit();
+                // erst nach dem Commit, damit ein fehlgeschlagener Block seine ids behält
+                for (Person row : stored) {
+                    for (Person person : byNaturalKey.getOrDefault(row, List.of())) {
+                        person.setId(row.getId());
+                    }
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
     }
 
     /**
      *
-     * @param house Name des Hauses
-     * @return Liste aller Personen des gegebenen Hauses
+     * Lädt eine Datei im Format von got.csv mit SYSCS_UTIL.SYSCS_IMPORT_DATA (siehe PersonBulkLoader).
+     * Ist die Datei nicht direkt importierbar, wird sie über JDBC-Batches geladen.
+     *
+     * @param csvFile Datei mit Kopfzeile name;city;house
+     * @return Anzahl und id-Bereich der geladenen Personen
      */
-    public List<Person> findByHouse(String house) {
-
-        return null;
+    public PersonBulkLoader.Result bulkLoad(Path csvFile) throws IOException {
+        long start = System.nanoTime();
+        PersonBulkLoader.Result result = new PersonBulkLoader(this).load(csvFile);
+        modificationCount.incrementAndGet();
+        metrics.recordOperation("bulkLoad", start, (int) result.getCount());
+        return result;
     }
 
+    /**
+     *
+     * Liefert die Änderungen an der Tabelle person nach der gegebenen Sequenznummer, aufsteigend sortiert.
+     * Ein Konsument merkt sich die seq der letzten verarbeiteten Änderung und fragt damit erneut an.
+     *
+     * Geliefert werden nur Änderungen bis getLatestChangeSequence(): darunter ist jede seq committet oder
+     * zurückgerollt, eine später committete Änderung hat daher immer eine größere seq als die zuletzt
+     * gelieferte. Innerhalb von inTransaction() gilt das nicht (siehe getLatestChangeSequence()).
+     *
+     * @param sequence 0 für alle Änderungen
+     * @param limit maximale Anzahl der Änderungen
+     * @return höchstens limit Änderungen mit seq > sequence
+     */
+    public List<PersonChange> findChangesSince(long sequence, int limit) {
+        long start = System.nanoTime();
+        List<PersonChange> changes = new ArrayList<>();
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(FIND_CHANGES_SQL)) {
+            long settled = settledSequence(conn, CHANGE_TABLE_NAME);
+            pstmt.setLong(1, sequence);
+            pstmt.setLong(2, settled);
+            pstmt.setInt(3, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    changes.add(new PersonChange(rs.getLong(1), rs.getLong(2),
+                            PersonChange.Operation.of(rs.getString(3)), rs.getTimestamp(4).toLocalDateTime()));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        metrics.recordOperation("findChangesSince", start, changes.size());
+        return changes;
+    }
+
+    /**
+     * @return Anzahl der Personen pro Haus (ohne Häuser ohne Personen)
+     */
+    public Map<String, Long> countByHouse() {
+        return counts(HOUSE, "countByHouse");
+    }
+
+    /**
+     * @return Anzahl der Personen des Hauses, ein Bereich des Index von person_stats
+     */
+    public long countByHouse(String house) {
+        return count(HOUSE, house, "countByHouse");
+    }
+
+    /**
+     * @return Anzahl der Personen pro Stadt (ohne Städte ohne Personen)
+     */
+    public Map<String, Long> countByCity() {
+        return counts(CITY, "countByCity");
+    }
+
+    public long countByCity(String city) {
+        return count(CITY, city, "countByCity");
+    }
+
+    /**
+     * @return die n Häuser mit den meisten Personen, absteigend sortiert (bei Gleichstand nach Namen)
+     */
+    public Map<String, Long> topHouses(int n) {
+        long start = System.nanoTime();
+        Map<String, Long> top = new LinkedHashMap<>();
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(TOP_SQL)) {
+            boolean locked = lockStatisticsForReading(conn);
+            pstmt.setString(1, HOUSE);
+            pstmt.setInt(2, n);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    top.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+            if (locked) {
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        metrics.recordOperation("topHouses", start, top.size());
+        return top;
+    }
+
+    /**
+     * Berechnet person_stats aus der Tabelle person neu, z.B. nach einem Import an den Triggern vorbei.
+     * Die Tabelle person ist währenddessen für Schreiber gesperrt.
+     */
+    public void rebuildStatistics() {
+        long start = System.nanoTime();
+        try (Connection conn = getConnection();
+             Statement stmt = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            try {
+                stmt.execute("LOCK TABLE " + TABLE_NAME + " IN SHARE MODE");
+                stmt.execute("LOCK TABLE " + STATS_LOCK_TABLE_NAME + " IN EXCLUSIVE MODE");
+                stmt.executeUpdate("DELETE FROM " + STATS_TABLE_NAME);
+                stmt.executeUpdate("INSERT INTO " + STATS_TABLE_NAME + " (kind, name, cnt) SELECT '" + HOUSE +
+                        "', house, COUNT(*) FROM " + TABLE_NAME + " WHERE house IS NOT NULL GROUP BY house");
+                stmt.executeUpdate("INSERT INTO " + STATS_TABLE_NAME + " (kind, name, cnt) SELECT '" + CITY +
+                        "', city, COUNT(*) FROM " + TABLE_NAME + " WHERE city IS NOT NULL GROUP BY city");
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        metrics.recordOperation("rebuildStatistics", start, 0);
+    }
+
+    /**
+     * Fasst die Differenzen in person_stats zu einer Zeile pro Haus bzw. Stadt zusammen.
+     * Zusammengefasst werden nur Zeilen bis zu einer seq, unter der keine Transaktion mehr offen ist (siehe
+     * settledSequence()); summiert und gelöscht werden so genau dieselben Zeilen. Schreiber warten nur auf
+     * das Lesen dieser seq, Leser warten über person_stats_lock: sonst könnte ein Leser die Summe und eine
+     * schon gelesene Differenz zählen, und ein zweites Repository (z.B. in einem anderen Prozess) könnte
+     * dieselben Zeilen noch einmal zusammenfassen.
+     */
+    public synchronized void compactStatistics() {
+        long start = System.nanoTime();
+        int rows = 0;
+        int compacted = 0;
+        try (Connection conn = getConnection();
+             Statement stmt = conn.createStatement()) {
+            long maxSeq = settledSequence(conn, STATS_TABLE_NAME);
+            conn.setAutoCommit(false);
+            try {
+                stmt.execute("LOCK TABLE " + STATS_LOCK_TABLE_NAME + " IN EXCLUSIVE MODE");
+                try (PreparedStatement pstmt = conn.prepareStatement(COMPACT_STATS_SQL)) {
+                    pstmt.setLong(1, maxSeq);
+                    compacted = pstmt.executeUpdate();
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(DELETE_COMPACTED_STATS_SQL)) {
+                    pstmt.setLong(1, maxSeq);
+                    rows = pstmt.executeUpdate();
+                }
+                conn.commit();
+                compactedStatisticsRows = compacted;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        metrics.recordOperation("compactStatistics", start, rows);
+    }
+
+    /**
+     * Aufgabe des Hintergrund-Threads: zusammenfassen, wenn seit dem letzten Mal mehr als
+     * STATS_COMPACT_THRESHOLD Zeilen dazugekommen sind
+     */
+    private void compactStatisticsIfNeeded() {
+        try (Connection conn = connectionPool.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + STATS_TABLE_NAME)) {
+            rs.next();
+            if (rs.getLong(1) - compactedStatisticsRows <= STATS_COMPACT_THRESHOLD) {
+                return;
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        compactStatistics();
+    }
+
+    private Map<String, Long> counts(String kind, String operation) {
+        long start = System.nanoTime();
+        Map<String, Long> counts = new HashMap<>();
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(COUNTS_SQL)) {
+            boolean locked = lockStatisticsForReading(conn);
+            pstmt.setString(1, kind);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    counts.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+            if (locked) {
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        metrics.recordOperation(operation, start, counts.size());
+        return counts;
+    }
+
+    /**
+     * Sperrt person_stats_lock gemeinsam bis zum commit(), damit nicht während compactStatistics() gezählt wird.
+     * In inTransaction() wird nicht gesperrt: die Transaktion kann eigene Differenzen halten, auf die
+     * compactStatistics() wartet.
+     *
+     * @return true, wenn gesperrt wurde
+     */
+    private boolean lockStatisticsForReading(Connection conn) throws SQLException {
+        if (hasTransaction()) {
+            return false;
+        }
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("LOCK TABLE " + STATS_LOCK_TABLE_NAME + " IN SHARE MODE");
+        }
+        return true;
+    }
+
+    private long count(String kind, String name, String operation) {
+        long start = System.nanoTime();
+        long count = 0;
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(COUNT_SQL)) {
+            boolean locked = lockStatisticsForReading(conn);
+            pstmt.setString(1, kind);
+            pstmt.setString(2, name);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    count = rs.getLong(1);
+                }
+            }
+            if (locked) {
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        metrics.recordOperation(operation, start, 1);
+        return count;
+    }
+
+    /**
+     * @return die Sequenznummer der letzten abgeschlossenen Änderung, 0 wenn es noch keine gibt (siehe
+     *         settledSequence())
+     */
+    public long getLatestChangeSequence() {
+        try (Connection conn = getConnection()) {
+            return settledSequence(conn, CHANGE_TABLE_NAME);
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        return 0;
+    }
+
+    /**
+     * Derby vergibt die seq von person_change und person_stats beim Einfügen, nicht beim Commit: eine
+     * Transaktion mit seq 10 kann nach einer mit seq 11 committen, wer nach MAX(seq) = 11 weiterliest, würde
+     * seq 10 überspringen. Daher wird MAX(seq) unter einer kurzen exklusiven Sperre der Tabelle gelesen: LOCK TABLE
+     * wartet, bis alle Transaktionen mit Zeilen in der Tabelle abgeschlossen sind, und neue Zeilen bekommen
+     * danach eine größere seq. Bis zur gelieferten seq ist damit jede seq committet oder zurückgerollt.
+     * Schreiber warten nur so lange, bis die Sperre mit dem Commit wieder freigegeben ist.
+     *
+     * Innerhalb von inTransaction() wird nicht gesperrt (die Sperre hielte bis zum Ende der Transaktion,
+     * und eigene Zeilen der Transaktion sind noch nicht committet), geliefert wird dann MAX(seq).
+     *
+     * @return die größte seq der Tabelle, unter der keine Transaktion mehr offen ist
+     */
+    private long settledSequence(Connection conn, String tableName) throws SQLException {
+        boolean lock = !hasTransaction();
+        if (lock) {
+            conn.setAutoCommit(false);
+        }
+        try (Statement stmt = conn.createStatement()) {
+            if (lock) {
+                stmt.execute("LOCK TABLE " + tableName + " IN EXCLUSIVE MODE");
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT MAX(seq) FROM " + tableName)) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        } finally {
+            if (lock) {
+                conn.commit();
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Löscht alle Änderungen bis einschließlich sequence, nachdem alle Konsumenten sie verarbeitet haben
+     */
+    public void deleteChangesUpTo(long sequence) {
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement("DELETE FROM " + CHANGE_TABLE_NAME + " WHERE seq <= ?")) {
+            pstmt.setLong(1, sequence);
+            pstmt.executeUpdate();
+            synchronized (this) {
+                changesDeletedUpTo = Math.max(changesDeletedUpTo, sequence);
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * @return die größte sequence, bis zu der über dieses Repository Änderungen gelöscht wurden
+     */
+    long getChangesDeletedUpTo() {
+        return changesDeletedUpTo;
+    }
+
+    /**
+     * @return die Sequenznummer der ältesten Änderung im Protokoll, 0 wenn es leer ist
+     */
+    public long getOldestChangeSequence() {
+        try (Connection conn = getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MIN(seq) FROM " + CHANGE_TABLE_NAME)) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        return 0;
+    }
+
+    /**
+     * Die temporäre Tabelle gehört zur (gepoolten) Verbindung und wird nur beim ersten Mal angelegt
+     */
+    private void declareStagingTable(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(DECLARE_STAGING_SQL);
+        } catch (SQLException e) {
+            if (!SQL_STATE_ALREADY_EXISTS.equals(e.getSQLState())) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Schreibt die natürlichen Schlüssel der Personen mit einem JDBC-Batch in SESSION.person_staging
+     */
+    private void stage(Connection conn, Collection<Person> persons) throws SQLException {
+        declareStagingTable(conn);
+        if (transactionConnection.get() != null) {
+            // ON COMMIT DELETE ROWS greift erst am Ende der Transaktion
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("DELETE FROM " + STAGING_TABLE);
+            }
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(INSERT_STAGING_SQL)) {
+            for (Person person : persons) {
+                pstmt.setString(1, person.getName());
+                pstmt.setString(2, person.getCity());
+                pstmt.setString(3, person.getHouse());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+    }
+
+    /**
+     * @return die Datensätze von person mit den natürlichen Schlüsseln aus SESSION.person_staging
+     */
+    private List<Person> findStaged(Connection conn) throws SQLException {
+        List<Person> stored = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(FIND_STAGED_SQL);
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                stored.add(toPerson(rs));
+            }
+        }
+        return stored;
+    }
+
+    private void saveChunk(List<Person> chunk) throws SQLException {
+        List<Person> toUpdate = new ArrayList<>();
+        List<Person> toInsert = new ArrayList<>();
+        for (Person person : chunk) {
+            (person.getId() != null ? toUpdate : toInsert).add(person);
+        }
+
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            boolean[] updated = new boolean[toUpdate.size()];
+            Long[] ids = new Long[0];
+            Integer[] versions = new Integer[0];
+            try {
+                if (!toUpdate.isEmpty()) {
+                    updated = updateBatch(conn, toUpdate);
+                    for (int i = 0; i < updated.length; i++) {
+                        if (!updated[i]) {
+                            toInsert.add(toUpdate.get(i));
+                        }
+                    }
+                }
+                ids = new Long[toInsert.size()];
+                versions = new Integer[toInsert.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = toInsert.get(i).getId();
+                    versions[i] = toInsert.get(i).getVersion();
+                }
+                if (!toInsert.isEmpty()) {
+                    insertBatch(conn, toInsert);
+                }
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                // die ids der zurückgerollten INSERTs gibt es nicht
+                for (int i = 0; i < ids.length; i++) {
+                    toInsert.get(i).setId(ids[i]);
+                    toInsert.get(i).setVersion(versions[i]);
+                }
+                throw e;
+            }
+            // erst nach dem Commit, damit ein zurückgerollter Block mit den alten Versionen wiederholt wird
+            for (int i = 0; i < updated.length; i++) {
+                if (updated[i]) {
+                    incrementVersion(toUpdate.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return pro Person, ob sie geändert wurde; false heißt, die id wurde nicht gefunden und
+     *         die Person muss eingefügt werden
+     * @throws OptimisticLockException wenn eine Person mit version inzwischen geändert wurde
+     */
+    private boolean[] updateBatch(Connection conn, List<Person> persons) throws SQLException {
+        boolean[] updated = new boolean[persons.size()];
+        try (PreparedStatement pstmt = conn.prepareStatement(UPDATE_SQL)) {
+            for (Person person : persons) {
+                bindUpdate(pstmt, person);
+                pstmt.addBatch();
+            }
+            int[] rowsAffected = pstmt.executeBatch();
+            for (int i = 0; i < rowsAffected.length; i++) {
+                updated[i] = rowsAffected[i] != 0;
+                if (!updated[i]) {
+                    checkConflict(conn, persons.get(i));
+                }
+            }
+        }
+        return updated;
+    }
+
+    private static void bindUpdate(PreparedStatement pstmt, Person person) throws SQLException {
+        pstmt.setString(1, person.getName());
+        pstmt.setString(2, person.getCity());
+        pstmt.setString(3, person.getHouse());
+        pstmt.setLong(4, person.getId());
+        if (person.getVersion() != null) {
+            pstmt.setInt(5, person.getVersion());
+            pstmt.setInt(6, person.getVersion());
+        } else {
+            pstmt.setNull(5, Types.INTEGER);
+            pstmt.setNull(6, Types.INTEGER);
+        }
+    }
+
+    /**
+     * Wurde eine Person mit version nicht geändert, obwohl es ihre id gibt, war jemand anderer schneller
+     */
+    private static void checkConflict(Connection conn, Person person) throws SQLException {
+        if (person.getVersion() == null) {
+            return;
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(EXISTS_SQL)) {
+            pstmt.setLong(1, person.getId());
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    throw new OptimisticLockException(person.getId(), person.getVersion());
+                }
+            }
+        }
+    }
+
+    private static void incrementVersion(Person person) {
+        if (person.getVersion() != null) {
+            person.setVersion(person.getVersion() + 1);
+        }
+    }
+
+    /**
+     * Derby liefert bei executeBatch() keine generierten Keys. Die Zeilen werden daher mit einem JDBC-Batch
+     * eingefügt und ihre ids danach in derselben Transaktion über den natürlichen Schlüssel (name, city, house)
+     * gelesen: die Schlüssel kommen mit einem zweiten Batch in SESSION.person_staging, ein Join über den
+     * Index person_uq liefert die neuen Zeilen. Gesperrt werden so nur die neuen Zeilen, und ein Block
+     * braucht unabhängig von seiner Größe nur wenige Roundtrips.
+     *
+     * Personen mit name, city oder house null sind über person_uq nicht eindeutig und werden einzeln mit
+     * RETURN_GENERATED_KEYS eingefügt.
+     */
+    private void insertBatch(Connection conn, List<Person> persons) throws SQLException {
+        Map<Person, Person> byNaturalKey = new LinkedHashMap<>();
+        List<Person> withoutKey = new ArrayList<>();
+        for (Person person : persons) {
+            if (person.getName() == null || person.getCity() == null || person.getHouse() == null) {
+                withoutKey.add(person);
+            } else if (byNaturalKey.putIfAbsent(person, person) != null) {
+                throw new SQLIntegrityConstraintViolationException("duplicate person in batch: " + person);
+            }
+        }
+        if (!byNaturalKey.isEmpty()) {
+            try (PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL)) {
+                for (Person person : byNaturalKey.keySet()) {
+                    pstmt.setString(1, person.getName());
+                    pstmt.setString(2, person.getCity());
+                    pstmt.setString(3, person.getHouse());
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+            }
+            stage(conn, byNaturalKey.keySet());
+            for (Person row : findStaged(conn)) {
+                Person person = byNaturalKey.get(row);
+                person.setId(row.getId());
+                person.setVersion(row.getVersion());
+            }
+        }
+        if (!withoutKey.isEmpty()) {
+            try (PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                for (Person person : withoutKey) {
+                    pstmt.setString(1, person.getName());
+                    pstmt.setString(2, person.getCity());
+                    pstmt.setString(3, person.getHouse());
+                    pstmt.executeUpdate();
+                    try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                        rs.next();
+                        person.setId(rs.getLong(1));
+                        person.setVersion(0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * Wie man die generierte ID erhält: https://stackoverflow.com/a/1915197
+     *
+     * @param personToSave
+     * @return Rückgabe der Person inklusive der neu generierten ID
+     */
+    private Person insert(Person personToSave) {
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setString(1, personToSave.getName());
+            pstmt.setString(2, personToSave.getCity());
+            pstmt.setString(3, personToSave.getHouse());
+            pstmt.executeUpdate();
+            try (ResultSet keys = pstmt.getGeneratedKeys()) {
+                if (keys.next()) {
+                    personToSave.setId(keys.getLong(1));
+                    personToSave.setVersion(0);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        modificationCount.incrementAndGet();
+        return personToSave;
+    }
+
+    /**
+     *
+     * @param personToSave
+     * @return wenn erfolgreich --> Anzahl der eingefügten Zeilen, also 1
+     *         wenn die id nicht existiert --> 0
+     *         wenn nicht erfolgreich --> -1
+     * @throws OptimisticLockException wenn die version nicht mehr stimmt
+     */
+    private int update(Person personToSave) {
+        int rowsAffected = -1;
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(UPDATE_SQL)) {
+            bindUpdate(pstmt, personToSave);
+            rowsAffected = pstmt.executeUpdate();
+            if (rowsAffected == 0) {
+                checkConflict(conn, personToSave);
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        } finally {
+            invalidate(personToSave.getId());
+        }
+        if (rowsAffected > 0) {
+            incrementVersion(personToSave);
+        }
+        return rowsAffected;
+    }
+
+    @Override
+    public void delete(long id) {
+        long start = System.nanoTime();
+        WriteBehindBuffer buffer = writeBehind;
+        if (buffer != null) {
+            buffer.discard(id);
+        }
+        int rowsAffected = 0;
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(DELETE_SQL)) {
+            pstmt.setLong(1, id);
+            rowsAffected = pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        invalidate(id);
+        metrics.recordOperation("delete", start, rowsAffected);
+    }
+
+    /**
+     *
+     * Finden Sie eine Person anhand Ihrer ID
+     *
+     * Ist der PersonCache eingeschaltet, wird zuerst im Cache gesucht.
+     * Im Write-Behind-Modus wird eine noch nicht geschriebene Person aus dem Puffer geliefert.
+     *
+     * @param id
+     * @return die gefundene Person oder wenn nicht gefunden wird null zurückgegeben
+     */
+    public Person find(long id) {
+        long start = System.nanoTime();
+        WriteBehindBuffer buffer = writeBehind;
+        Person buffered = buffer != null ? buffer.get(id) : null;
+        if (buffered != null) {
+            metrics.recordOperation("find", start, 1);
+            return copyOf(buffered);
+        }
+        PersonCache cache = personCache;
+        Person person = cache != null ? cache.get(id, this::load) : load(id);
+        metrics.recordOperation("find", start, person != null ? 1 : 0);
+        return person;
+    }
+
+    /**
+     *
+     * Liest viele Personen mit wenigen Abfragen: doppelte ids werden entfernt, die übrigen in Blöcken
+     * von höchstens 256 ids mit WHERE id IN (...) gelesen, alle Blöcke über eine Verbindung.
+     * Die IN-Listen haben nur die Längen aus FIND_ALL_CHUNK_SIZES, ein kürzerer Rest wird mit der
+     * letzten id aufgefüllt. Der PersonCache wird nicht verwendet.
+     *
+     * @param ids
+     * @return die gefundenen Personen nach id, ids ohne Datensatz fehlen in der Map
+     */
+    public Map<Long, Person> findAll(Collection<Long> ids) {
+        long start = System.nanoTime();
+        Map<Long, Person> found = new HashMap<>();
+        List<Long> toLoad = new ArrayList<>(new LinkedHashSet<>(ids));
+        toLoad.removeIf(Objects::isNull);
+
+        WriteBehindBuffer buffer = writeBehind;
+        if (buffer != null) {
+            toLoad.removeIf(id -> {
+                Person buffered = buffer.get(id);
+                if (buffered != null) {
+                    found.put(id, copyOf(buffered));
+                }
+                return buffered != null;
+            });
+        }
+
+        try (Connection conn = getConnection()) {
+            int from = 0;
+            while (from < toLoad.size()) {
+                int index = chunkSizeIndex(toLoad.size() - from);
+                int chunkSize = FIND_ALL_CHUNK_SIZES[index];
+                int to = Math.min(from + chunkSize, toLoad.size());
+                try (PreparedStatement pstmt = conn.prepareStatement(FIND_ALL_SQL[index])) {
+                    for (int i = 0; i < chunkSize; i++) {
+                        pstmt.setLong(i + 1, toLoad.get(Math.min(from + i, to - 1)));
+                    }
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            Person person = toPerson(rs);
+                            found.put(person.getId(), person);
+                        }
+                    }
+                }
+                from = to;
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        metrics.recordOperation("findAll", start, found.size());
+        return found;
+    }
+
+    /**
+     * @return die kleinste Standardlänge, in die remaining ids passen, sonst die größte
+     */
+    private static int chunkSizeIndex(int remaining) {
+        for (int i = 0; i < FIND_ALL_CHUNK_SIZES.length; i++) {
+            if (FIND_ALL_CHUNK_SIZES[i] >= remaining) {
+                return i;
+            }
+        }
+        return FIND_ALL_CHUNK_SIZES.length - 1;
+    }
+
+    private Person load(long id) {
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(FIND_SQL)) {
+            pstmt.setLong(1, id);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return toPerson(rs);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param house Name des Hauses
+     * @return Liste aller Personen des gegebenen Hauses
+     */
+    public List<Person> findByHouse(String house) {
+        long start = System.nanoTime();
+        List<Person> persons = new LinkedList<>();
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(FIND_BY_HOUSE_SQL)) {
+            pstmt.setString(1, house);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    persons.add(toPerson(rs));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        metrics.recordOperation("findByHouse", start, persons.size());
+        return persons;
+    }
+
+    /**
+     *
+     * @param city Name der Stadt
+     * @return Liste aller Personen der gegebenen Stadt
+     */
+    public List<Person> findByCity(String city) {
+        long start = System.nanoTime();
+        List<Person> persons = new LinkedList<>();
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(FIND_BY_CITY_SQL)) {
+            pstmt.setString(1, city);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    persons.add(toPerson(rs));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        metrics.recordOperation("findByCity", start, persons.size());
+        return persons;
+    }
+
+    /**
+     *
+     * Wie findByHouse(), die Personen werden aber erst beim Konsumieren des Streams aus dem ResultSet
+     * gelesen (jeweils fetchSize Zeilen pro Roundtrip).
+     *
+     * Die Verbindung bleibt bis zum Ende des Streams ausgeborgt. Sie wird zurückgegeben, sobald
+     * die letzte Zeile gelesen wurde oder der Stream geschlossen wird; daher den Stream immer mit
+     * try-with-resources verwenden, wenn er nicht vollständig konsumiert wird.
+     *
+     * @param house Name des Hauses
+     * @return Stream aller Personen des gegebenen Hauses
+     */
+    public Stream<Person> streamByHouse(String house) {
+        long start = System.nanoTime();
+        Stream<Person> stream = streamQuery(FIND_BY_HOUSE_SQL, pstmt -> pstmt.setString(1, house));
+        // gemessen wird nur das Öffnen der Abfrage (time to first row)
+        metrics.recordOperation("streamByHouse", start, 0);
+        return stream;
+    }
+
+    /**
+     *
+     * Keyset-Paging: liefert höchstens limit Personen des Hauses mit id > afterId, sortiert nach id.
+     * Die nächste Seite erhält man mit der id der letzten Person als afterId.
+     *
+     * @param house Name des Hauses
+     * @param afterId 0 für die erste Seite
+     * @param limit maximale Anzahl der Personen
+     * @return eine Seite der Personen des gegebenen Hauses
+     */
+    public List<Person> findByHouse(String house, long afterId, int limit) {
+        long start = System.nanoTime();
+        List<Person> persons = new ArrayList<>(Math.min(limit, 1000));
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(FIND_BY_HOUSE_PAGE_SQL)) {
+            pstmt.setString(1, house);
+            pstmt.setLong(2, afterId);
+            pstmt.setInt(3, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    persons.add(toPerson(rs));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        metrics.recordOperation("findByHousePage", start, persons.size());
+        return persons;
+    }
+
+    /**
+     * Suche für Autovervollständigung über den Namensindex (siehe PersonNameIndex), ohne Groß-/Kleinschreibung:
+     * zuerst Personen, bei denen ein Wort des Namens mit query beginnt, dann Personen, deren Name query
+     * enthält (ab drei Zeichen). Der Index wird im Hintergrund aktualisiert, Schreibzugriffe sind daher erst
+     * kurz danach (oder nach getNameIndex().refresh()) über den Namen zu finden.
+     * Ohne Index (disableNameIndex()) wird mit LIKE '%query%' gesucht (Full Table Scan), sortiert nach Namen.
+     *
+     * @return höchstens limit Personen
+     */
+    public List<Person> searchByName(String query, int limit) {
+        long start = System.nanoTime();
+        PersonNameIndex index = nameIndex;
+        if (index == null) {
+            List<Person> persons = scanByName(query, limit);
+            metrics.recordOperation("searchByName", start, persons.size());
+            return persons;
+        }
+        List<Long> ids = index.search(query, limit);
+        Map<Long, Person> found = findAll(ids);
+        List<Person> persons = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Person person = found.get(id);
+            if (person != null) {
+                persons.add(person);
+            }
+        }
+        metrics.recordOperation("searchByName", start, persons.size());
+        return persons;
+    }
+
+    private List<Person> scanByName(String query, int limit) {
+        List<Person> persons = new ArrayList<>();
+        String normalized = query == null ? "" : query.trim().toLowerCase(Locale.ROOT);
+        if (normalized.isEmpty() || limit < 1) {
+            return persons;
+        }
+        String pattern = "%" + normalized.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(SEARCH_BY_NAME_SQL)) {
+            pstmt.setString(1, pattern);
+            pstmt.setMaxRows(limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    persons.add(toPerson(rs));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        return persons;
+    }
+
+    private interface ParameterBinder {
+        void bind(PreparedStatement pstmt) throws SQLException;
+    }
+
+    private Stream<Person> streamQuery(String sql, ParameterBinder binder) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            conn = getConnection();
+            pstmt = conn.prepareStatement(sql);
+            binder.bind(pstmt);
+            pstmt.setFetchSize(fetchSize);
+            rs = pstmt.executeQuery();
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+            closeQuietly(rs, pstmt, conn);
+            return Stream.empty();
+        }
+
+        ResultSetSpliterator spliterator = new ResultSetSpliterator(conn, pstmt, rs);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    private class ResultSetSpliterator extends Spliterators.AbstractSpliterator<Person> {
+        private final Connection conn;
+        private final PreparedStatement pstmt;
+        private final ResultSet rs;
+        private boolean closed;
+
+        ResultSetSpliterator(Connection conn, PreparedStatement pstmt, ResultSet rs) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.conn = conn;
+            this.pstmt = pstmt;
+            this.rs = rs;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Person> action) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (rs.next()) {
+                    action.accept(toPerson(rs));
+                    return true;
+                }
+            } catch (SQLException e) {
+                System.err.println(e.getMessage());
+            }
+            close();
+            return false;
+        }
+
+        void close() {
+            if (!closed) {
+                closed = true;
+                closeQuietly(rs, pstmt, conn);
+            }
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable... resources) {
+        for (AutoCloseable resource : resources) {
+            if (resource != null) {
+                try {
+                    resource.close();
+                } catch (Exception e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+    }
+
+    static Person copyOf(Person person) {
+        Person copy = new Person(person.getName(), person.getCity(), person.getHouse());
+        copy.setId(person.getId());
+        copy.setVersion(person.getVersion());
+        return copy;
+    }
+
+    private Person toPerson(ResultSet rs) throws SQLException {
+        Person person = new Person(rs.getString("name"), rs.getString("city"), rs.getString("house"));
+        person.setId(rs.getLong("id"));
+        person.setVersion(rs.getInt("version"));
+        return person;
+    }
 
 }
@@ -0,0 +1,272 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Unveränderlicher Schnappschuss der Tabelle person in Spalten-Form.
+ * <p>
+ * Statt eines Person-Objekts pro Zeile (Long + drei Strings) werden gespeichert:
+ * - die ids aufsteigend sortiert in einem LongBuffer (Suche mit binärer Suche)
+ * - name, city und house als int-Codes in je einem IntBuffer, die Strings selbst nur einmal im Wörterbuch
+ *   (Häuser und Städte wiederholen sich in got.csv sehr oft)
+ * - die version in einem IntBuffer, damit gelesene Personen wie bei find() mit Versionsprüfung gespeichert werden
+ * - pro Haus und pro Stadt eine Posting-Liste mit den Zeilennummern
+ * <p>
+ * Mit offHeap = true liegen die Spalten in Direct-ByteBuffers außerhalb des Java-Heaps.
+ * Personen werden erst bei find() bzw. beim Zugriff auf ein Listenelement erzeugt.
+ */
+public class PersonSnapshot {
+
+    private static final String SELECT_ALL_SQL = "SELECT id, name, city, house, version FROM " + PersonRepository.TABLE_NAME + " ORDER BY id";
+    private static final int NULL_CODE = -1;
+
+    private final int size;
+    private final LongBuffer ids;
+    private final IntBuffer names;
+    private final IntBuffer cities;
+    private final IntBuffer houses;
+    private final IntBuffer versions;
+    private final String[] dictionary;
+    private final Map<String, int[]> rowsByHouse;
+    private final Map<String, int[]> rowsByCity;
+
+    private PersonSnapshot(Builder builder, boolean offHeap) {
+        size = builder.size;
+        ids = offHeap ? ByteBuffer.allocateDirect(size * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer()
+                : LongBuffer.allocate(size);
+        ids.put(builder.ids, 0, size).flip();
+        names = toBuffer(builder.names, size, offHeap);
+        cities = toBuffer(builder.cities, size, offHeap);
+        houses = toBuffer(builder.houses, size, offHeap);
+        versions = toBuffer(builder.versions, size, offHeap);
+        dictionary = builder.dictionary.toArray(new String[0]);
+        rowsByHouse = postingLists(houses, size, dictionary);
+        rowsByCity = postingLists(cities, size, dictionary);
+    }
+
+    /**
+     * Liest die gesamte Tabelle über eine Verbindung des Repositories
+     */
+    public static PersonSnapshot load(PersonRepository repository, boolean offHeap) throws SQLException {
+        Builder builder = new Builder();
+        try (Connection conn = repository.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(SELECT_ALL_SQL)) {
+            pstmt.setFetchSize(1000);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    builder.add(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getInt(5));
+                }
+            }
+        }
+        return new PersonSnapshot(builder, offHeap);
+    }
+
+    /**
+     * Neuer Schnappschuss mit geänderten Personen, ohne die Tabelle zu lesen: die Zeilen der ids in changed
+     * werden durch die Person ersetzt (bzw. bei null entfernt), neue ids werden einsortiert
+     *
+     * @param changed geänderte Personen nach id, null für gelöschte
+     */
+    public PersonSnapshot apply(Map<Long, Person> changed, boolean offHeap) {
+        TreeMap<Long, Person> sorted = new TreeMap<>(changed);
+        Builder builder = new Builder();
+        Iterator<Map.Entry<Long, Person>> iterator = sorted.entrySet().iterator();
+        Map.Entry<Long, Person> next = iterator.hasNext() ? iterator.next() : null;
+        for (int row = 0; row < size; row++) {
+            long id = ids.get(row);
+            while (next != null && next.getKey() <= id) {
+                if (next.getKey() < id) {
+                    add(builder, next.getValue());
+                }
+                next = iterator.hasNext() ? iterator.next() : null;
+            }
+            if (!changed.containsKey(id)) {
+                builder.add(id, decode(names.get(row)), decode(cities.get(row)), decode(houses.get(row)), versions.get(row));
+            } else {
+                add(builder, changed.get(id));
+            }
+        }
+        while (next != null) {
+            add(builder, next.getValue());
+            next = iterator.hasNext() ? iterator.next() : null;
+        }
+        return new PersonSnapshot(builder, offHeap);
+    }
+
+    private static void add(Builder builder, Person person) {
+        if (person != null) {
+            builder.add(person.getId(), person.getName(), person.getCity(), person.getHouse(),
+                    person.getVersion() != null ? person.getVersion() : 0);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Anzahl der verschiedenen Strings (Namen, Städte und Häuser)
+     */
+    public int dictionarySize() {
+        return dictionary.length;
+    }
+
+    /**
+     * @return die Person oder null, wenn es die id im Schnappschuss nicht gibt
+     */
+    public Person find(long id) {
+        int row = rowOf(id);
+        return row < 0 ? null : materialize(row);
+    }
+
+    public List<Person> findByHouse(String house) {
+        return view(rowsByHouse.get(house));
+    }
+
+    public List<Person> findByCity(String city) {
+        return view(rowsByCity.get(city));
+    }
+
+    private int rowOf(long id) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = ids.get(mid);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private Person materialize(int row) {
+        Person person = new Person(decode(names.get(row)), decode(cities.get(row)), decode(houses.get(row)));
+        person.setId(ids.get(row));
+        person.setVersion(versions.get(row));
+        return person;
+    }
+
+    private String decode(int code) {
+        return code == NULL_CODE ? null : dictionary[code];
+    }
+
+    /**
+     * Liste, deren Elemente erst beim Zugriff erzeugt werden
+     */
+    private List<Person> view(int[] rows) {
+        if (rows == null) {
+            return Collections.emptyList();
+        }
+        return new AbstractList<Person>() {
+            @Override
+            public Person get(int index) {
+                return materialize(rows[index]);
+            }
+
+            @Override
+            public int size() {
+                return rows.length;
+            }
+        };
+    }
+
+    private static IntBuffer toBuffer(int[] values, int size, boolean offHeap) {
+        IntBuffer buffer = offHeap
+                ? ByteBuffer.allocateDirect(size * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer()
+                : IntBuffer.allocate(size);
+        buffer.put(values, 0, size).flip();
+        return buffer;
+    }
+
+    /**
+     * Counting-Sort der Zeilennummern nach Code: zuerst zählen, dann einsortieren
+     */
+    private static Map<String, int[]> postingLists(IntBuffer codes, int size, String[] dictionary) {
+        int[] counts = new int[dictionary.length];
+        for (int row = 0; row < size; row++) {
+            int code = codes.get(row);
+            if (code != NULL_CODE) {
+                counts[code]++;
+            }
+        }
+        int[][] lists = new int[dictionary.length][];
+        int[] filled = new int[dictionary.length];
+        for (int row = 0; row < size; row++) {
+            int code = codes.get(row);
+            if (code != NULL_CODE) {
+                if (lists[code] == null) {
+                    lists[code] = new int[counts[code]];
+                }
+                lists[code][filled[code]++] = row;
+            }
+        }
+        Map<String, int[]> result = new HashMap<>();
+        for (int code = 0; code < lists.length; code++) {
+            if (lists[code] != null) {
+                result.put(dictionary[code], lists[code]);
+            }
+        }
+        return result;
+    }
+
+    private static class Builder {
+        int size;
+        long[] ids = new long[1024];
+        int[] names = new int[1024];
+        int[] cities = new int[1024];
+        int[] houses = new int[1024];
+        int[] versions = new int[1024];
+        final Map<String, Integer> codes = new HashMap<>();
+        final List<String> dictionary = new ArrayList<>();
+
+        void add(long id, String name, String city, String house, int version) {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                names = Arrays.copyOf(names, capacity);
+                cities = Arrays.copyOf(cities, capacity);
+                houses = Arrays.copyOf(houses, capacity);
+                versions = Arrays.copyOf(versions, capacity);
+            }
+            ids[size] = id;
+            names[size] = encode(name);
+            cities[size] = encode(city);
+            houses[size] = encode(house);
+            versions[size] = version;
+            size++;
+        }
+
+        int encode(String value) {
+            if (value == null) {
+                return NULL_CODE;
+            }
+            return codes.computeIfAbsent(value, key -> {
+                dictionary.add(key);
+                return dictionary.size() - 1;
+            });
+        }
+    }
+}
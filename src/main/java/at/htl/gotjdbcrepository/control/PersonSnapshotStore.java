@@ -0,0 +1,204 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+import at.htl.gotjdbcrepository.entity.PersonChange;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Beantwortet find, findByHouse und findByCity aus einem PersonSnapshot im Speicher.
+ * <p>
+ * Aktuell gehalten wird der Schnappschuss über das Änderungsprotokoll (findChangesSince()): nur die Personen
+ * der neuen Änderungen werden gelesen und in einen neuen Schnappschuss übernommen (PersonSnapshot.apply()).
+ * Die ganze Tabelle wird nur beim ersten Mal geladen und wenn noch nicht übernommene Änderungen aus dem
+ * Protokoll gelöscht wurden (wie bei PersonNameIndex).
+ * <p>
+ * Ein Lesezugriff stößt das Aktualisieren im Hintergrund an, wenn sich getModificationCount() des Repositories
+ * geändert hat oder die letzte Prüfung mehr als REFRESH_INTERVAL_MILLIS zurückliegt (Änderungen anderer
+ * Repositories und Prozesse), und verwendet bis dahin den alten Schnappschuss weiter; der neue wird danach
+ * atomar ausgetauscht. Nur der allererste Lesezugriff wartet auf das Laden. Es läuft höchstens ein
+ * Ladevorgang gleichzeitig.
+ */
+public class PersonSnapshotStore {
+
+    public static final long REFRESH_INTERVAL_MILLIS = 1_000;
+    public static final int REFRESH_BATCH_SIZE = 10_000;
+
+    private static final ExecutorService REFRESHER = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "person-snapshot-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final PersonRepository repository;
+    private final boolean offHeap;
+    private final AtomicReference<CompletableFuture<PersonSnapshot>> pending = new AtomicReference<>();
+    private volatile Loaded loaded;
+
+    public PersonSnapshotStore(PersonRepository repository, boolean offHeap) {
+        this.repository = repository;
+        this.offHeap = offHeap;
+    }
+
+    public Person find(long id) {
+        return current().find(id);
+    }
+
+    public List<Person> findByHouse(String house) {
+        return current().findByHouse(house);
+    }
+
+    public List<Person> findByCity(String city) {
+        return current().findByCity(city);
+    }
+
+    /**
+     * @return den aktuellen Schnappschuss; ist er veraltet, wird im Hintergrund ein neuer geladen
+     */
+    public PersonSnapshot current() {
+        Loaded current = loaded;
+        if (current == null) {
+            refresh();
+            return loaded.snapshot;
+        }
+        if (current.modificationCount != repository.getModificationCount()
+                || System.nanoTime() - current.checkedAt >= TimeUnit.MILLISECONDS.toNanos(REFRESH_INTERVAL_MILLIS)) {
+            refreshAsync();
+        }
+        return current.snapshot;
+    }
+
+    /**
+     * Aktualisiert den Schnappschuss und wartet darauf, danach enthält er alle Schreibzugriffe, die vor dem
+     * Aufruf committet wurden
+     *
+     * @throws IllegalStateException wenn noch kein Schnappschuss geladen werden konnte
+     */
+    public void refresh() {
+        long requested = System.nanoTime();
+        try {
+            refreshAsync().join();
+            // der laufende Ladevorgang hat eventuell vor dem Aufruf begonnen
+            Loaded current = loaded;
+            if (current == null || current.checkedAt - requested < 0) {
+                refreshAsync().join();
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Startet das Laden im Hintergrund, sofern es nicht bereits läuft
+     *
+     * @return wird mit dem neuen Schnappschuss abgeschlossen
+     */
+    public CompletableFuture<PersonSnapshot> refreshAsync() {
+        while (true) {
+            CompletableFuture<PersonSnapshot> running = pending.get();
+            if (running != null) {
+                return running;
+            }
+            CompletableFuture<PersonSnapshot> next = new CompletableFuture<>();
+            if (pending.compareAndSet(null, next)) {
+                REFRESHER.execute(() -> {
+                    try {
+                        PersonSnapshot snapshot = reload();
+                        pending.compareAndSet(next, null);
+                        next.complete(snapshot);
+                    } catch (RuntimeException e) {
+                        pending.compareAndSet(next, null);
+                        next.completeExceptionally(e);
+                    }
+                });
+                return next;
+            }
+        }
+    }
+
+    private PersonSnapshot reload() {
+        // vor dem Laden gelesen: Schreibzugriffe während des Ladens lösen den nächsten Ladevorgang aus
+        long modificationCount = repository.getModificationCount();
+        long checkedAt = System.nanoTime();
+        Loaded current = loaded;
+        try {
+            Loaded next = current == null || changesDeleted(current.sequence)
+                    ? loadAll(modificationCount, checkedAt)
+                    : applyChanges(current, modificationCount, checkedAt);
+            loaded = next;
+            return next.snapshot;
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+            if (current == null) {
+                throw new IllegalStateException("snapshot could not be loaded", e);
+            }
+            return current.snapshot;
+        }
+    }
+
+    private Loaded loadAll(long modificationCount, long checkedAt) throws SQLException {
+        // Änderungen während des Ladens werden danach noch einmal übernommen, das schadet nicht
+        long sequence = Math.max(repository.getLatestChangeSequence(), repository.getChangesDeletedUpTo());
+        return new Loaded(PersonSnapshot.load(repository, offHeap), modificationCount, sequence, checkedAt);
+    }
+
+    private Loaded applyChanges(Loaded current, long modificationCount, long checkedAt) {
+        long sequence = current.sequence;
+        Set<Long> ids = new LinkedHashSet<>();
+        List<PersonChange> changes;
+        do {
+            changes = repository.findChangesSince(sequence, REFRESH_BATCH_SIZE);
+            for (PersonChange change : changes) {
+                ids.add(change.getPersonId());
+                sequence = change.getSequence();
+            }
+        } while (changes.size() == REFRESH_BATCH_SIZE);
+        if (ids.isEmpty()) {
+            return new Loaded(current.snapshot, modificationCount, sequence, checkedAt);
+        }
+        Map<Long, Person> found = repository.findAll(ids);
+        Map<Long, Person> changed = new HashMap<>();
+        for (Long id : ids) {
+            changed.put(id, found.get(id));
+        }
+        return new Loaded(current.snapshot.apply(changed, offHeap), modificationCount, sequence, checkedAt);
+    }
+
+    /**
+     * @return true, wenn Änderungen nach sequence aus dem Protokoll gelöscht wurden
+     */
+    private boolean changesDeleted(long sequence) {
+        return repository.getChangesDeletedUpTo() > sequence || repository.getOldestChangeSequence() > sequence + 1;
+    }
+
+    /**
+     * Schnappschuss, Stand des Zählers und seq der letzten übernommenen Änderung werden gemeinsam ausgetauscht
+     */
+    private static class Loaded {
+        final PersonSnapshot snapshot;
+        final long modificationCount;
+        final long sequence;
+        final long checkedAt;
+
+        Loaded(PersonSnapshot snapshot, long modificationCount, long sequence, long checkedAt) {
+            this.snapshot = snapshot;
+            this.modificationCount = modificationCount;
+            this.sequence = sequence;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
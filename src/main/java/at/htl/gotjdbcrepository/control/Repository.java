@@ -2,7 +2,11 @@ package at.htl.gotjdbcrepository.control;
 
 import at.htl.gotjdbcrepository.entity.Person;
 
+import java.util.Collection;
+import java.util.List;
+
 public interface Repository {
     public Person save(Person p);
+    public List<Person> saveAll(Collection<Person> persons);
     public void delete(long id);
 }
@@ -0,0 +1,355 @@
+package at.htl.gotjdbcrepository.control;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Messwerte des PersonRepository.
+ * <p>
+ * - pro Repository-Methode (find, save, ...): Anzahl, Latenz-Histogramm, gelesene bzw. geschriebene Zeilen,
+ *   Fehler (Aufrufe, in denen auf demselben Thread mindestens ein Statement fehlgeschlagen ist)
+ * - pro SQL-Statement: Anzahl, Latenz-Histogramm, Fehler, betroffene Zeilen. Zahlen und Strings im SQL-Text
+ *   werden dafür durch ? ersetzt, damit Statements mit Literalen nicht pro Wert einen Eintrag anlegen; ab
+ *   MAX_STATEMENTS verschiedenen Statements wird unter OTHER_STATEMENTS gezählt
+ * - Fehler nach SQLState
+ * - Wartezeit auf eine Verbindung aus dem Pool
+ * <p>
+ * Statements, die länger als slowStatementThresholdMillis dauern, werden samt Bind-Parametern auf
+ * System.err ausgegeben; die letzten MAX_SLOW_STATEMENTS bleiben über getRecentSlowStatements() abrufbar.
+ * Die Werte können mit snapshotOperations() / snapshotStatements() abgefragt werden oder über JMX.
+ */
+public class RepositoryMetrics implements RepositoryMetricsMXBean, InstrumentedStatement.StatementObserver {
+
+    public static final long DEFAULT_SLOW_STATEMENT_THRESHOLD_MILLIS = 100;
+    public static final int MAX_SLOW_STATEMENTS = 100;
+    public static final int MAX_STATEMENTS = 500;
+    public static final String OTHER_STATEMENTS = "(other statements)";
+
+    private final ConnectionPool connectionPool;
+    private final Map<String, Stats> operations = new ConcurrentHashMap<>();
+    private final Map<String, Stats> statements = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errorsBySqlState = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<String> slowStatements = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger slowStatementCount = new AtomicInteger();
+    private final ThreadLocal<long[]> lastErrorNanos = ThreadLocal.withInitial(() -> new long[]{Long.MIN_VALUE});
+    private volatile long slowStatementThresholdMillis = DEFAULT_SLOW_STATEMENT_THRESHOLD_MILLIS;
+    private ObjectName objectName;
+
+    public RepositoryMetrics(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * @param startNanos Ergebnis von System.nanoTime() zu Beginn der Methode
+     * @param rows gelesene bzw. geschriebene Personen
+     */
+    public void recordOperation(String operation, long startNanos, int rows) {
+        Stats stats = operations.computeIfAbsent(operation, key -> new Stats());
+        stats.latency.recordNanos(System.nanoTime() - startNanos);
+        stats.rows.add(Math.max(rows, 0));
+        if (lastErrorNanos.get()[0] - startNanos >= 0) {
+            stats.errors.increment();
+        }
+    }
+
+    /**
+     * Zählt einen Fehler der Methode operation, der nicht von einem Statement kommt (z.B. OptimisticLockException)
+     */
+    public void recordOperationError(String operation) {
+        operations.computeIfAbsent(operation, key -> new Stats()).errors.increment();
+    }
+
+    @Override
+    public void executed(String sql, List<Object> parameters, long nanos, int rows, SQLException error) {
+        Stats stats = statements.computeIfAbsent(statementKey(sql), key -> new Stats());
+        stats.latency.recordNanos(nanos);
+        stats.rows.add(Math.max(rows, 0));
+        if (error != null) {
+            lastErrorNanos.get()[0] = System.nanoTime();
+            stats.errors.increment();
+            errorsBySqlState.computeIfAbsent(String.valueOf(error.getSQLState()), key -> new LongAdder()).increment();
+        }
+        long millis = nanos / 1_000_000;
+        if (millis >= slowStatementThresholdMillis) {
+            String entry = String.format("slow statement (%d ms): %s %s", millis, sql, parameters);
+            System.err.println(entry);
+            slowStatements.addLast(entry);
+            if (slowStatementCount.incrementAndGet() > MAX_SLOW_STATEMENTS && slowStatements.pollFirst() != null) {
+                slowStatementCount.decrementAndGet();
+            }
+        }
+    }
+
+    public Map<String, Snapshot> snapshotOperations() {
+        return snapshot(operations);
+    }
+
+    public Map<String, Snapshot> snapshotStatements() {
+        return snapshot(statements);
+    }
+
+    /**
+     * Meldet die Messwerte unter at.htl.gotjdbcrepository:type=PersonRepository,name=... beim
+     * Platform-MBeanServer an. Eine bereits angemeldete Instanz mit demselben Namen wird ersetzt.
+     */
+    public synchronized void registerMBean(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("at.htl.gotjdbcrepository:type=PersonRepository,name="
+                    + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            System.err.println(e.getMessage());
+        }
+        objectName = null;
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        return collect(operations, stats -> stats.latency.getCount());
+    }
+
+    @Override
+    public Map<String, Long> getOperationRows() {
+        return collect(operations, stats -> stats.rows.sum());
+    }
+
+    @Override
+    public Map<String, Long> getOperationErrors() {
+        return collect(operations, stats -> stats.errors.sum());
+    }
+
+    @Override
+    public Map<String, Long> getOperationP50Micros() {
+        return collect(operations, stats -> stats.latency.getPercentileMicros(50));
+    }
+
+    @Override
+    public Map<String, Long> getOperationP99Micros() {
+        return collect(operations, stats -> stats.latency.getPercentileMicros(99));
+    }
+
+    @Override
+    public Map<String, Long> getOperationP999Micros() {
+        return collect(operations, stats -> stats.latency.getPercentileMicros(99.9));
+    }
+
+    @Override
+    public Map<String, Long> getStatementCounts() {
+        return collect(statements, stats -> stats.latency.getCount());
+    }
+
+    @Override
+    public Map<String, Long> getStatementErrors() {
+        return collect(statements, stats -> stats.errors.sum());
+    }
+
+    @Override
+    public Map<String, Long> getStatementP99Micros() {
+        return collect(statements, stats -> stats.latency.getPercentileMicros(99));
+    }
+
+    @Override
+    public Map<String, Long> getErrorsBySqlState() {
+        Map<String, Long> result = new TreeMap<>();
+        errorsBySqlState.forEach((sqlState, count) -> result.put(sqlState, count.sum()));
+        return result;
+    }
+
+    @Override
+    public long getPoolWaitP99Micros() {
+        return connectionPool.getBorrowWait().getPercentileMicros(99);
+    }
+
+    @Override
+    public long getSlowStatementThresholdMillis() {
+        return slowStatementThresholdMillis;
+    }
+
+    @Override
+    public void setSlowStatementThresholdMillis(long thresholdMillis) {
+        this.slowStatementThresholdMillis = thresholdMillis;
+    }
+
+    @Override
+    public List<String> getRecentSlowStatements() {
+        return new ArrayList<>(slowStatements);
+    }
+
+    @Override
+    public void reset() {
+        operations.clear();
+        statements.clear();
+        errorsBySqlState.clear();
+        slowStatements.clear();
+        slowStatementCount.set(0);
+    }
+
+    private String statementKey(String sql) {
+        String key = normalize(sql);
+        return statements.size() < MAX_STATEMENTS || statements.containsKey(key) ? key : OTHER_STATEMENTS;
+    }
+
+    /**
+     * Ersetzt Zahlen und Strings in '...' durch ?, Bezeichner (auch in "...") bleiben unverändert
+     */
+    static String normalize(String sql) {
+        if (sql == null) {
+            return "(unknown)";
+        }
+        StringBuilder normalized = null;
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            boolean literal = c == '\'' || Character.isDigit(c);
+            int end = i + 1;
+            if (c == '\'') {
+                // '' im String ist ein einzelnes '
+                while (end < length && (sql.charAt(end) != '\'' || end + 1 < length && sql.charAt(end + 1) == '\'')) {
+                    end += sql.charAt(end) == '\'' ? 2 : 1;
+                }
+                end = Math.min(end + 1, length);
+            } else if (c == '"') {
+                end = sql.indexOf('"', end);
+                end = end < 0 ? length : end + 1;
+            } else if (literal) {
+                while (end < length && (Character.isDigit(sql.charAt(end)) || sql.charAt(end) == '.')) {
+                    end++;
+                }
+            } else if (isIdentifierPart(c)) {
+                // Ziffern in Bezeichnern (z.B. t1) sind keine Literale
+                while (end < length && isIdentifierPart(sql.charAt(end))) {
+                    end++;
+                }
+            }
+            if (literal && normalized == null) {
+                normalized = new StringBuilder(length).append(sql, 0, i);
+            }
+            if (normalized != null) {
+                if (literal) {
+                    normalized.append('?');
+                } else {
+                    normalized.append(sql, i, end);
+                }
+            }
+            i = end;
+        }
+        return normalized != null ? normalized.toString() : sql;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private static Map<String, Long> collect(Map<String, Stats> source, ToLongFunction<Stats> value) {
+        Map<String, Long> result = new TreeMap<>();
+        source.forEach((key, stats) -> result.put(key, value.applyAsLong(stats)));
+        return result;
+    }
+
+    private static Map<String, Snapshot> snapshot(Map<String, Stats> source) {
+        Map<String, Snapshot> result = new TreeMap<>();
+        source.forEach((key, stats) -> result.put(key, new Snapshot(stats)));
+        return result;
+    }
+
+    private static class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder rows = new LongAdder();
+    }
+
+    /**
+     * Unveränderlicher Stand der Messwerte einer Methode bzw. eines Statements
+     */
+    public static class Snapshot {
+        private final long count;
+        private final long errors;
+        private final long rows;
+        private final double meanMicros;
+        private final long p50Micros;
+        private final long p99Micros;
+        private final long p999Micros;
+        private final long maxMicros;
+
+        private Snapshot(Stats stats) {
+            count = stats.latency.getCount();
+            errors = stats.errors.sum();
+            rows = stats.rows.sum();
+            meanMicros = stats.latency.getMeanMicros();
+            p50Micros = stats.latency.getPercentileMicros(50);
+            p99Micros = stats.latency.getPercentileMicros(99);
+            p999Micros = stats.latency.getPercentileMicros(99.9);
+            maxMicros = stats.latency.getMaxMicros();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getP999Micros() {
+            return p999Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, errors=%d, rows=%d, mean=%.0f µs, p50=%d µs, p99=%d µs, p99.9=%d µs, max=%d µs",
+                    count, errors, rows, meanMicros, p50Micros, p99Micros, p999Micros, maxMicros);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package at.htl.gotjdbcrepository.control;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX-Sicht auf RepositoryMetrics (z.B. in JConsole oder VisualVM unter at.htl.gotjdbcrepository)
+ */
+public interface RepositoryMetricsMXBean {
+
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Long> getOperationRows();
+
+    Map<String, Long> getOperationErrors();
+
+    Map<String, Long> getOperationP50Micros();
+
+    Map<String, Long> getOperationP99Micros();
+
+    Map<String, Long> getOperationP999Micros();
+
+    Map<String, Long> getStatementCounts();
+
+    Map<String, Long> getStatementErrors();
+
+    Map<String, Long> getStatementP99Micros();
+
+    Map<String, Long> getErrorsBySqlState();
+
+    long getPoolWaitP99Micros();
+
+    long getSlowStatementThresholdMillis();
+
+    void setSlowStatementThresholdMillis(long thresholdMillis);
+
+    List<String> getRecentSlowStatements();
+
+    void reset();
+}
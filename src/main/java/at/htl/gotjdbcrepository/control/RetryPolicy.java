@@ -0,0 +1,50 @@
+package at.htl.gotjdbcrepository.control;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Legt fest, wie oft PersonRepository.modify() nach einer OptimisticLockException erneut versucht wird.
+ * Vor jedem weiteren Versuch wird eine zufällige Zeit zwischen 0 und backoffMillis * 2^(Versuch-1)
+ * gewartet, damit konkurrierende Schreiber nicht wieder gleichzeitig kollidieren.
+ */
+public class RetryPolicy {
+
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0);
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 2);
+
+    private final int maxAttempts;
+    private final long backoffMillis;
+
+    public RetryPolicy(int maxAttempts, long backoffMillis) {
+        if (maxAttempts < 1 || backoffMillis < 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive and backoffMillis not negative");
+        }
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBackoffMillis() {
+        return backoffMillis;
+    }
+
+    /**
+     * Wartet vor dem nächsten Versuch
+     *
+     * @param attempt der fehlgeschlagene Versuch, beginnend bei 1
+     */
+    void backoff(int attempt) {
+        long maxDelay = backoffMillis << Math.min(attempt - 1, 10);
+        if (maxDelay == 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
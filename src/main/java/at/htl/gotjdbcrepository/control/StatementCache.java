@@ -0,0 +1,172 @@
+package at.htl.gotjdbcrepository.control;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache für PreparedStatements einer physischen Verbindung.
+ * <p>
+ * Der Schlüssel ist der SQL-Text (und ob generierte Keys verlangt werden). Der Cache ist auf maxSize
+ * Statements begrenzt, das am längsten nicht verwendete Statement wird geschlossen (LRU).
+ * Ein gecachtes Statement wird beim close() nicht geschlossen, sondern nur zurückgesetzt (Parameter, Batch,
+ * Warnungen sowie fetchSize und maxRows), damit z.B. die fetchSize von streamByHouse() nicht weiterlebt.
+ * <p>
+ * Eine Verbindung wird vom Pool immer nur an einen Thread verliehen, daher ist der Cache nicht synchronisiert.
+ * Die Zähler für Hits und Misses werden dagegen von allen Verbindungen des Pools gemeinsam verwendet.
+ */
+class StatementCache {
+
+    private final Connection connection;
+    private final int maxSize;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+    StatementCache(Connection connection, int maxSize, LongAdder hits, LongAdder misses) {
+        this.connection = connection;
+        this.maxSize = maxSize;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    PreparedStatement prepare(Connection owner, String sql, int autoGeneratedKeys) throws SQLException {
+        if (maxSize == 0) {
+            return connection.prepareStatement(sql, autoGeneratedKeys);
+        }
+        String key = autoGeneratedKeys + ":" + sql;
+        CachedStatement cached = statements.get(key);
+        if (cached != null && cached.statement.isClosed()) {
+            statements.remove(key);
+            cached = null;
+        }
+        if (cached != null) {
+            if (cached.inUse) {
+                // dasselbe SQL wird auf dieser Verbindung gerade verwendet
+                misses.increment();
+                return connection.prepareStatement(sql, autoGeneratedKeys);
+            }
+            hits.increment();
+        } else {
+            misses.increment();
+            cached = new CachedStatement(connection.prepareStatement(sql, autoGeneratedKeys));
+            statements.put(key, cached);
+            evictEldest();
+        }
+        cached.inUse = true;
+        return cached.wrap(owner);
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    void closeAll() {
+        for (CachedStatement cached : statements.values()) {
+            cached.evicted = true;
+            cached.closeQuietly();
+        }
+        statements.clear();
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<String, CachedStatement>> it = statements.entrySet().iterator();
+        while (statements.size() > maxSize && it.hasNext()) {
+            CachedStatement eldest = it.next().getValue();
+            it.remove();
+            eldest.evicted = true;
+            if (!eldest.inUse) {
+                eldest.closeQuietly();
+            }
+        }
+    }
+
+    private static class CachedStatement {
+        final PreparedStatement statement;
+        final int defaultFetchSize;
+        final int defaultMaxRows;
+        boolean inUse;
+        boolean evicted;
+
+        CachedStatement(PreparedStatement statement) throws SQLException {
+            this.statement = statement;
+            this.defaultFetchSize = statement.getFetchSize();
+            this.defaultMaxRows = statement.getMaxRows();
+        }
+
+        PreparedStatement wrap(Connection owner) {
+            InvocationHandler handler = new InvocationHandler() {
+                private boolean returned;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "close":
+                            if (!returned) {
+                                returned = true;
+                                giveBack();
+                            }
+                            return null;
+                        case "isClosed":
+                            return returned || statement.isClosed();
+                        case "getConnection":
+                            return owner;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            if (returned) {
+                                throw new SQLException("statement is closed");
+                            }
+                    }
+                    try {
+                        return method.invoke(statement, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            };
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    StatementCache.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, handler);
+        }
+
+        void giveBack() {
+            inUse = false;
+            if (evicted) {
+                closeQuietly();
+                return;
+            }
+            try {
+                statement.clearParameters();
+                statement.clearBatch();
+                statement.clearWarnings();
+                if (statement.getFetchSize() != defaultFetchSize) {
+                    statement.setFetchSize(defaultFetchSize);
+                }
+                if (statement.getMaxRows() != defaultMaxRows) {
+                    statement.setMaxRows(defaultMaxRows);
+                }
+            } catch (SQLException e) {
+                evicted = true;
+                closeQuietly();
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package at.htl.gotjdbcrepository.control;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Proxy um die Verbindung einer laufenden Transaktion (PersonRepository.inTransaction()).
+ * <p>
+ * Die Methoden des Repositories verwenden die Verbindung wie eine eigene: close() gibt sie nicht zurück,
+ * und ihre eigenen Transaktionen (setAutoCommit(false) ... commit() bzw. rollback()) werden zu
+ * Savepoints innerhalb der äußeren Transaktion. Schlägt z.B. ein Block von saveAll() fehl, wird nur
+ * dieser Block zurückgerollt; committet wird erst am Ende von inTransaction().
+ */
+class TransactionConnection implements InvocationHandler {
+
+    private final Connection connection;
+    private final Deque<Savepoint> savepoints = new ArrayDeque<>();
+
+    private TransactionConnection(Connection connection) {
+        this.connection = connection;
+    }
+
+    static Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(
+                TransactionConnection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new TransactionConnection(connection));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "close":
+                return null;
+            case "getAutoCommit":
+                return false;
+            case "setAutoCommit":
+                if (!(Boolean) args[0]) {
+                    savepoints.push(connection.setSavepoint());
+                }
+                return null;
+            case "commit":
+                if (!savepoints.isEmpty()) {
+                    connection.releaseSavepoint(savepoints.pop());
+                }
+                return null;
+            case "rollback":
+                if (args == null || args.length == 0) {
+                    if (!savepoints.isEmpty()) {
+                        connection.rollback(savepoints.pop());
+                    }
+                    return null;
+                }
+                break;
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "Transaction[" + connection + "]";
+            default:
+        }
+        try {
+            return method.invoke(connection, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-Behind-Puffer für PersonRepository.save().
+ * <p>
+ * save() legt die Person nur in den Puffer und kehrt sofort zurück. Ein Hintergrund-Thread schreibt
+ * den Puffer mit saveAll() in Blöcken in die Datenbank:
+ * - alle flushIntervalMillis Millisekunden
+ * - sobald flushSize Personen im Puffer liegen
+ * Liegen 2 * flushSize Personen im Puffer, schreibt der aufrufende Thread selbst (Gegendruck).
+ * <p>
+ * Gepuffert wird eine Kopie der Person: spätere Änderungen des Aufrufers werden erst mit dem nächsten
+ * save() geschrieben. Mehrere save() derselben id zwischen zwei Flushes werden zusammengefasst, nur der
+ * letzte Stand wird geschrieben. Neue Personen (ohne id) werden über die Identität des Objekts
+ * zusammengefasst; sie erhalten ihre id (wie gespeicherte Personen ihre neue version) erst beim Flush.
+ * Ein save() einer neuen Person, deren INSERT gerade läuft, wird zurückgestellt und nach dem Flush als
+ * UPDATE mit der neuen id gepuffert, die Person wird also nicht zweimal eingefügt.
+ * <p>
+ * saveAll(), modify() und delete() des Repositories schreiben am Puffer vorbei. Sie verwerfen (saveAll(),
+ * delete()) bzw. schreiben (modify()) vorher die gepufferten Änderungen ihrer Personen und warten auf einen
+ * laufenden Flush, damit kein älterer Stand aus dem Puffer ihre Änderung überschreibt.
+ * <p>
+ * Ein Shutdown-Hook schreibt den Puffer beim Beenden der JVM. Fehler beim Schreiben werden ausgegeben und
+ * gezählt: Personen mit Versionskonflikt (OptimisticLockException) oder die nicht gespeichert werden konnten
+ * (z.B. Duplikate), werden verworfen, alle anderen trotzdem geschrieben.
+ */
+public class WriteBehindBuffer implements AutoCloseable {
+
+    private final PersonRepository repository;
+    private final int flushSize;
+    private final Map<Object, Entry> pending = new ConcurrentHashMap<>();
+    /**
+     * Neue Personen, deren INSERT gerade läuft, und ihre zurückgestellten save(); beide wie die Schlüssel
+     * von pending über keyLock geändert
+     */
+    private final Set<InsertKey> inFlight = new HashSet<>();
+    private final Map<InsertKey, Entry> deferred = new HashMap<>();
+    private final Object keyLock = new Object();
+    private final ScheduledExecutorService flusher;
+    private final Thread shutdownHook;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final LongAdder buffered = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+
+    WriteBehindBuffer(PersonRepository repository, int flushSize, long flushIntervalMillis) {
+        if (flushSize < 1 || flushIntervalMillis < 1) {
+            throw new IllegalArgumentException("flushSize and flushIntervalMillis must be positive");
+        }
+        this.repository = repository;
+        this.flushSize = flushSize;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "person-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        this.shutdownHook = new Thread(this::flush, "person-write-behind-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    void add(Person person) {
+        Entry entry = new Entry(person);
+        synchronized (keyLock) {
+            // die id einer neuen Person wird unter keyLock gesetzt, siehe flush()
+            Entry replaced;
+            if (person.getId() != null) {
+                replaced = pending.put(person.getId(), entry);
+            } else {
+                InsertKey key = new InsertKey(person);
+                replaced = inFlight.contains(key) ? deferred.put(key, entry) : pending.put(key, entry);
+            }
+            if (replaced != null) {
+                coalesced.increment();
+            }
+        }
+        buffered.increment();
+
+        int size = pending.size();
+        if (size >= 2 * flushSize) {
+            flush();
+        } else if (size >= flushSize && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(() -> {
+                flushRequested.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * @return die noch nicht geschriebene Person mit dieser id oder null
+     */
+    Person get(long id) {
+        Entry entry = pending.get(id);
+        return entry != null ? entry.copy : null;
+    }
+
+    /**
+     * Verwirft eine noch nicht geschriebene Änderung (vor delete()). Wartet auf einen laufenden Flush,
+     * damit dieser die Person nicht nach dem Löschen wieder einfügt.
+     */
+    synchronized void discard(long id) {
+        pending.remove(id);
+    }
+
+    /**
+     * Verwirft die noch nicht geschriebenen Änderungen dieser Personen (vor saveAll()): nach id bzw. neue
+     * Personen über ihre Identität. Wartet wie discard(long) auf einen laufenden Flush.
+     */
+    synchronized void discard(Collection<Person> persons) {
+        synchronized (keyLock) {
+            for (Person person : persons) {
+                if (person.getId() != null) {
+                    pending.remove(person.getId());
+                } else {
+                    pending.remove(new InsertKey(person));
+                }
+            }
+        }
+    }
+
+    /**
+     * Schreibt den Puffer, wenn er eine Änderung dieser id enthält (vor modify()), und wartet auf einen
+     * laufenden Flush
+     */
+    synchronized void flush(long id) {
+        if (pending.containsKey(id)) {
+            flush();
+        }
+    }
+
+    synchronized void clear() {
+        synchronized (keyLock) {
+            pending.clear();
+            deferred.clear();
+        }
+    }
+
+    /**
+     * Schreibt alle Personen, die beim Aufruf im Puffer liegen
+     *
+     * @return Anzahl der geschriebenen Personen
+     */
+    public synchronized int flush() {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        List<Entry> batch = new ArrayList<>(pending.size());
+        List<Person> copies = new ArrayList<>(pending.size());
+        synchronized (keyLock) {
+            for (Map.Entry<Object, Entry> entry : pending.entrySet()) {
+                if (entry.getKey() instanceof InsertKey) {
+                    inFlight.add((InsertKey) entry.getKey());
+                }
+                batch.add(entry.getValue());
+                copies.add(entry.getValue().copy);
+            }
+            pending.clear();
+        }
+        Set<Person> rejected = Collections.newSetFromMap(new IdentityHashMap<>());
+        try {
+            repository.storeAll(copies);
+        } catch (BatchFailedException e) {
+            // nur die Personen mit Versionskonflikt verwerfen, die übrigen sind geschrieben
+            System.err.println(e.getMessage());
+            rejected.addAll(e.getFailed());
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            for (Person copy : copies) {
+                try {
+                    repository.storeAll(List.of(copy));
+                } catch (RuntimeException single) {
+                    System.err.println(single.getMessage());
+                    rejected.add(copy);
+                }
+            }
+        }
+        int saved = 0;
+        synchronized (keyLock) {
+            for (Entry entry : batch) {
+                boolean ok = entry.copy.getId() != null && !rejected.contains(entry.copy);
+                if (ok) {
+                    entry.original.setId(entry.copy.getId());
+                    entry.original.setVersion(entry.copy.getVersion());
+                    saved++;
+                }
+                InsertKey key = new InsertKey(entry.original);
+                if (inFlight.remove(key)) {
+                    moveDeferred(key, ok ? entry.copy : null);
+                }
+            }
+        }
+        written.add(saved);
+        failed.add(batch.size() - saved);
+        flushes.increment();
+        return saved;
+    }
+
+    /**
+     * Puffert ein save() einer neuen Person, das während ihres INSERTs kam, für den nächsten Flush:
+     * mit der neuen id und version als UPDATE, bzw. ohne id, wenn das INSERT fehlgeschlagen ist
+     */
+    private void moveDeferred(InsertKey key, Person inserted) {
+        Entry entry = deferred.remove(key);
+        if (entry == null) {
+            return;
+        }
+        if (inserted == null) {
+            pending.putIfAbsent(key, entry);
+            return;
+        }
+        entry.copy.setId(inserted.getId());
+        entry.copy.setVersion(inserted.getVersion());
+        pending.putIfAbsent(inserted.getId(), entry);
+    }
+
+    /**
+     * Beendet den Hintergrund-Thread und schreibt den restlichen Puffer
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // die JVM wird gerade beendet, der Hook läuft bereits
+        }
+    }
+
+    /**
+     * @return Anzahl der Personen, die noch nicht geschrieben wurden
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    public long getBuffered() {
+        return buffered.sum();
+    }
+
+    /**
+     * @return Anzahl der save()-Aufrufe, die einen noch nicht geschriebenen Stand ersetzt haben
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * Die Person des Aufrufers (bekommt nach dem Flush id und version) und die Kopie, die geschrieben wird
+     */
+    private static final class Entry {
+        final Person original;
+        final Person copy;
+
+        Entry(Person original) {
+            this.original = original;
+            this.copy = PersonRepository.copyOf(original);
+        }
+    }
+
+    /**
+     * Schlüssel für neue Personen: Person.equals() vergleicht name, city und house,
+     * zwei verschiedene neue Personen sollen aber nicht zusammengefasst werden
+     */
+    private static final class InsertKey {
+        private final Person person;
+
+        InsertKey(Person person) {
+            this.person = person;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof InsertKey && ((InsertKey) o).person == person;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(person);
+        }
+    }
+}
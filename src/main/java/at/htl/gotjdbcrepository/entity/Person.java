@@ -8,6 +8,7 @@ public class Person {
     private String name;
     private String city;
     private String house;
+    private Integer version;
 
     public Person() {
     }
@@ -50,7 +51,34 @@ public class Person {
         this.house = house;
     }
 
+    /**
+     * @return die version des Datensatzes beim Lesen, null für Personen ohne Versionsprüfung
+     */
+    public Integer getVersion() {
+        return version;
+    }
+
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
+
+    /**
+     * Zwei Personen sind gleich, wenn name, city und house übereinstimmen (id und version werden nicht verglichen)
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Person person = (Person) o;
+        return Objects.equals(name, person.name) &&
+                Objects.equals(city, person.city) &&
+                Objects.equals(house, person.house);
+    }
 
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, city, house);
+    }
 
     @Override
     public String toString() {
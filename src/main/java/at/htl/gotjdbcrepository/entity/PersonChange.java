@@ -0,0 +1,59 @@
+package at.htl.gotjdbcrepository.entity;
+
+import java.time.LocalDateTime;
+
+/**
+ * Ein Eintrag im Änderungsprotokoll der Tabelle person
+ */
+public class PersonChange {
+
+    public enum Operation {
+        INSERT, UPDATE, DELETE;
+
+        public static Operation of(String code) {
+            switch (code) {
+                case "I":
+                    return INSERT;
+                case "U":
+                    return UPDATE;
+                case "D":
+                    return DELETE;
+                default:
+                    throw new IllegalArgumentException("unknown operation: " + code);
+            }
+        }
+    }
+
+    private final long sequence;
+    private final long personId;
+    private final Operation operation;
+    private final LocalDateTime changedAt;
+
+    public PersonChange(long sequence, long personId, Operation operation, LocalDateTime changedAt) {
+        this.sequence = sequence;
+        this.personId = personId;
+        this.operation = operation;
+        this.changedAt = changedAt;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getPersonId() {
+        return personId;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public LocalDateTime getChangedAt() {
+        return changedAt;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s %d (%s)", sequence, operation, personId, changedAt);
+    }
+}
@@ -0,0 +1,100 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CsvPersonImporterTest {
+
+    @Test
+    void test010_parseLineTrimsFields() {
+        Person person = CsvPersonImporter.parseLine("Jon Snow; Targaryen; Dragonstone");
+        assertThat(person).isEqualTo(new Person("Jon Snow", "Targaryen", "Dragonstone"));
+    }
+
+    @Test
+    void test020_parseLineRejectsWrongNumberOfFields() {
+        assertThat(CsvPersonImporter.parseLine("Jon Snow;Targaryen")).isNull();
+        assertThat(CsvPersonImporter.parseLine("Jon Snow;Targaryen;Dragonstone;x")).isNull();
+        assertThat(CsvPersonImporter.parseLine(" ;Targaryen;Dragonstone")).isNull();
+    }
+
+    @Test
+    void test025_parseLineWithQuotedFields() {
+        Person person = CsvPersonImporter.parseLine("\"Jon \"\"the Bastard\"\" Snow\"; \"Winterfell; North\" ;Stark");
+        assertThat(person).isEqualTo(new Person("Jon \"the Bastard\" Snow", "Winterfell; North", "Stark"));
+        assertThat(CsvPersonImporter.parseLine("\"Jon Snow;Winterfell;Stark")).isNull();
+        assertThat(CsvPersonImporter.parseLine("Jon \"Snow\";Winterfell;Stark")).isNull();
+    }
+
+    @Test
+    void test030_importFile() throws IOException {
+        Path file = Files.createTempFile("got", ".csv");
+        Files.write(file, List.of(
+                "name;city;house",
+                "Daenerys Targaryen;Targaryen;Dragonstone",
+                "Jon Snow; Targaryen; Dragonstone",
+                "kaputt",
+                "Arya Stark; Stark; Winterfell"
+        ), StandardCharsets.UTF_8);
+
+        PersonRepository personRepository = PersonRepository.getInstance();
+        personRepository.deleteAll();
+
+        CsvPersonImporter.Result result = new CsvPersonImporter(personRepository, 2, 2, 2).importFile(file);
+        System.out.println(result);
+
+        assertThat(result.getRows()).isEqualTo(3);
+        assertThat(result.getRejected()).isEqualTo(1);
+        assertThat(result.getRejectedLineNumbers()).containsExactly(4L);
+        assertThat(personRepository.findByHouse("Dragonstone"))
+                .extracting(Person::getName)
+                .containsExactlyInAnyOrder("Daenerys Targaryen", "Jon Snow");
+        Files.delete(file);
+    }
+
+    @Test
+    void test035_importRejectsOnlyTheLineWithAStrayQuote() throws IOException {
+        List<String> lines = new ArrayList<>(List.of("name;city;house", "O\"Brien;Winterfell;Stark"));
+        for (int i = 0; i < 2 * CsvPersonImporter.MAX_RECORD_LINES; i++) {
+            lines.add("Soldier " + i + ";Winterfell;Stark");
+        }
+        Path file = Files.createTempFile("got", ".csv");
+        Files.write(file, lines, StandardCharsets.UTF_8);
+
+        PersonRepository personRepository = PersonRepository.getInstance();
+        personRepository.deleteAll();
+
+        CsvPersonImporter.Result result = new CsvPersonImporter(personRepository, 4, 2, 2).importFile(file);
+
+        assertThat(result.getRows()).isEqualTo(2 * CsvPersonImporter.MAX_RECORD_LINES);
+        assertThat(result.getRejectedLineNumbers()).containsExactly(2L);
+        personRepository.deleteAll();
+        Files.delete(file);
+    }
+
+    @Test
+    void test040_importGot2() throws IOException {
+        PersonRepository personRepository = PersonRepository.getInstance();
+        personRepository.deleteAll();
+
+        CsvPersonImporter.Result result = new CsvPersonImporter(personRepository).importFile(Paths.get("got2.csv"));
+
+        // die zweite "Arya Stark" (Zeile 7) verletzt person_uq
+        assertThat(result.getRows()).isEqualTo(6);
+        assertThat(result.getRejected()).isZero();
+        assertThat(result.getFailed()).isEqualTo(1);
+        assertThat(result.getFailedLineNumbers()).containsExactly(7L);
+        assertThat(personRepository.findByHouse("Winterfell")).extracting(Person::getName).containsExactly("Arya Stark");
+        personRepository.deleteAll();
+    }
+}
@@ -0,0 +1,81 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MappedCsvReaderTest {
+
+    @Test
+    void test010_readGot() throws IOException {
+        List<Person> expected = Files.readAllLines(Paths.get("got.csv"), StandardCharsets.UTF_8).stream()
+                .skip(1)
+                .map(CsvPersonImporter::parseLine)
+                .collect(Collectors.toList());
+
+        List<Person> persons = new MappedCsvReader().readAll(Paths.get("got.csv"));
+
+        assertThat(persons).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    void test020_smallSegmentsAndChunks() throws IOException {
+        List<Person> expected = new MappedCsvReader().readAll(Paths.get("got.csv"));
+
+        List<Person> persons = new MappedCsvReader(256, 64, new ForkJoinPool(4)).readAll(Paths.get("got.csv"));
+
+        assertThat(persons).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    void test030_trimsRejectsAndInterns() throws IOException {
+        Path file = Files.createTempFile("got", ".csv");
+        Files.write(file, List.of(
+                "name;city;house",
+                "Jon Snow; Winterfell ; Stark\r",
+                "",
+                "kaputt",
+                " ;Winterfell;Stark",
+                "Arya Stark;Winterfell;Stark;x",
+                "Sansa Stark;Winterfell;Stark"
+        ), StandardCharsets.UTF_8);
+
+        MappedCsvReader reader = new MappedCsvReader(64, 32, ForkJoinPool.commonPool());
+        List<Person> persons = new ArrayList<>();
+        MappedCsvReader.Result result = reader.read(file, persons::addAll);
+        System.out.println(result);
+
+        assertThat(persons).containsExactly(
+                new Person("Jon Snow", "Winterfell", "Stark"),
+                new Person("Sansa Stark", "Winterfell", "Stark"));
+        assertThat(persons.get(0).getHouse()).isSameAs(persons.get(1).getHouse());
+        assertThat(result.getRows()).isEqualTo(2);
+        assertThat(result.getRejected()).isEqualTo(3);
+        Files.delete(file);
+    }
+
+    @Test
+    void test040_importFile() throws IOException {
+        PersonRepository personRepository = PersonRepository.getInstance();
+        personRepository.deleteAll();
+
+        MappedCsvReader.Result result = new MappedCsvReader().importFile(personRepository, Paths.get("got2.csv"));
+
+        // die zweite "Arya Stark" verletzt person_uq und wird nicht gespeichert
+        assertThat(result.getRows()).isEqualTo(6);
+        assertThat(result.getFailed()).isEqualTo(1);
+        assertThat(personRepository.findByHouse("Winterfell")).extracting(Person::getName).containsExactly("Arya Stark");
+        personRepository.deleteAll();
+    }
+}
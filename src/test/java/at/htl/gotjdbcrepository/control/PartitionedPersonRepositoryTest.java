@@ -0,0 +1,76 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+class PartitionedPersonRepositoryTest {
+
+    private PartitionedPersonRepository repository;
+
+    @BeforeEach
+    void open() {
+        repository = new PartitionedPersonRepository(DerbyMode.MEMORY, "partition_test", 3);
+        repository.deleteAll();
+    }
+
+    @AfterEach
+    void close() {
+        repository.close();
+    }
+
+    @Test
+    void test010_globallyUniqueIds() throws IOException {
+        List<Person> persons = repository.saveAll(new MappedCsvReader().readAll(Paths.get("got.csv")));
+
+        List<Long> ids = persons.stream().map(Person::getId).collect(Collectors.toList());
+        assertThat(ids).doesNotContainNull().doesNotHaveDuplicates().hasSize(200);
+        for (Person person : persons) {
+            assertThat(repository.partitionOf(person.getId())).isEqualTo((person.getId() - 1) % 3);
+            assertThat(repository.getPartition(repository.partitionOf(person.getId())).find(person.getId()))
+                    .isEqualTo(person);
+        }
+        assertThat(persons.stream().map(person -> repository.partitionOf(person.getId())).distinct())
+                .containsExactlyInAnyOrder(0, 1, 2);
+    }
+
+    @Test
+    void test020_routeAndScatterGather() {
+        Person jon = repository.save(new Person("Jon Snow", "Winterfell", "Stark"));
+        Person arya = repository.save(new Person("Arya Stark", "Winterfell", "Stark"));
+        Person sansa = repository.save(new Person("Sansa Stark", "Winterfell", "Stark"));
+        Person daenerys = repository.save(new Person("Daenerys Targaryen", "Dragonstone", "Targaryen"));
+
+        assertThat(repository.find(jon.getId())).isEqualTo(jon);
+        assertThat(repository.findByHouse("Stark")).containsExactlyInAnyOrder(jon, arya, sansa)
+                .extracting(Person::getId).isSorted();
+        assertThat(repository.findByCity("Dragonstone")).containsExactly(daenerys);
+
+        Map<Long, Person> found = repository.findAll(List.of(jon.getId(), daenerys.getId(), 999_999L));
+        assertThat(found).containsOnlyKeys(jon.getId(), daenerys.getId());
+
+        jon.setCity("Castle Black");
+        repository.save(jon);
+        assertThat(repository.find(jon.getId()).getCity()).isEqualTo("Castle Black");
+
+        repository.delete(arya.getId());
+        assertThat(repository.find(arya.getId())).isNull();
+
+        assertThat(repository.countByHouse("Stark")).isEqualTo(2);
+        assertThat(repository.topHouses(1)).containsExactly(entry("Stark", 2L));
+
+        repository.deleteAll();
+        assertThat(repository.findByHouse("Stark")).isEmpty();
+        assertThat(repository.countByHouse()).isEmpty();
+    }
+}
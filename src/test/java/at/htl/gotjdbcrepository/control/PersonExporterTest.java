@@ -0,0 +1,100 @@
+package at.htl.gotjdbcrepository.control;
+
+import at.htl.gotjdbcrepository.entity.Person;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PersonExporterTest {
+
+    private PersonRepository personRepository;
+
+    @BeforeEach
+    void loadGot() throws IOException {
+        personRepository = PersonRepository.getInstance();
+        personRepository.deleteAll();
+        personRepository.bulkLoad(Paths.get("got.csv"));
+    }
+
+    @Test
+    void test010_exportCsv() throws IOException {
+        Path file = Files.createTempFile("got-export", ".csv");
+
+        PersonExporter.Result result = new PersonExporter(personRepository, 3, 1024, true).export(file, PersonExporter.Format.CSV);
+        System.out.println(result);
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertThat(result.getRows()).isEqualTo(200);
+        assertThat(result.getBytes()).isEqualTo(Files.size(file));
+        assertThat(lines.get(0)).isEqualTo(CsvPersonImporter.HEADER);
+        assertThat(parse(lines)).containsExactlyElementsOf(parse(Files.readAllLines(Paths.get("got.csv"), StandardCharsets.UTF_8)));
+        Files.delete(file);
+    }
+
+    @Test
+    void test020_exportBinary() throws IOException {
+        Path file = Files.createTempFile("got-export", ".bin");
+
+        PersonExporter.Result result = new PersonExporter(personRepository).export(file, PersonExporter.Format.BINARY);
+        System.out.println(result);
+
+        ConnectionPool pool = personRepository.getConnectionPool();
+        assertThat(PersonExporter.defaultThreads(pool)).isBetween(1, Math.max(1, pool.getMaxSize() / 2));
+
+        List<Person> persons = PersonExporter.readBinary(file);
+        assertThat(persons).hasSize(200);
+        assertThat(persons).extracting(Person::getId).isSorted();
+        for (Person person : persons) {
+            assertThat(personRepository.find(person.getId())).isEqualTo(person);
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    void test030_exportEmptyTable() throws IOException {
+        personRepository.deleteAll();
+        Path file = Files.createTempFile("got-export", ".bin");
+
+        PersonExporter.Result result = new PersonExporter(personRepository).export(file, PersonExporter.Format.BINARY);
+
+        assertThat(result.getRows()).isZero();
+        assertThat(PersonExporter.readBinary(file)).isEmpty();
+        Files.delete(file);
+    }
+
+    @Test
+    void test040_exportCsvQuotesFields() throws IOException {
+        personRepository.deleteAll();
+        List<Person> persons = List.of(
+                new Person("Jon \"the Bastard\" Snow", "Winterfell; North", "Stark"),
+                new Person("Hodor", "Winterfell\nNorth", " Stark "));
+        personRepository.saveAll(persons);
+        Path file = Files.createTempFile("got-export", ".csv");
+
+        new PersonExporter(personRepository).export(file, PersonExporter.Format.CSV);
+        personRepository.deleteAll();
+        CsvPersonImporter.Result result = new CsvPersonImporter(personRepository).importFile(file);
+
+        assertThat(result.getRows()).isEqualTo(2);
+        assertThat(result.getRejected()).isZero();
+        assertThat(personRepository.findByHouse("Stark")).containsExactly(persons.get(0));
+        assertThat(personRepository.findByHouse(" Stark ")).containsExactly(persons.get(1));
+        Files.delete(file);
+    }
+
+    private static List<Person> parse(List<String> lines) {
+        return lines.stream()
+                .skip(1)
+                .map(CsvPersonImporter::parseLine)
+                .collect(Collectors.toList());
+    }
+}
@@ -1,6 +1,7 @@
 package at.htl.gotjdbcrepository.control;
 
 import at.htl.gotjdbcrepository.entity.Person;
+import at.htl.gotjdbcrepository.entity.PersonChange;
 import org.apache.derby.jdbc.ClientDataSource;
 import org.assertj.db.type.Table;
 import org.junit.jupiter.api.*;
@@ -13,9 +14,19 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 import static at.htl.gotjdbcrepository.control.PersonRepository.*;
 import static org.assertj.core.api.Assertions.*;
@@ -184,7 +195,7 @@ class PersonRepositoryTest {
         org.assertj.db.api.Assertions.assertThat(personTable).hasNumberOfRows(1);
         assertThat(jakob).isEqualTo(savedJakob);
         assertThat(savedJakob.getId()).isEqualTo(1L);
-        org.assertj.db.api.Assertions.assertThat(personTable).row(0).hasValues(1L, "Jakob", "Bad Leonfelden", "Targaryen");
+        org.assertj.db.api.Assertions.assertThat(personTable).row(0).hasValues(1L, "Jakob", "Bad Leonfelden", "Targaryen", 0);
     }
 
     /**
@@ -248,7 +259,7 @@ class PersonRepositoryTest {
         Table personTable = new Table(dataSource, TABLE_NAME);
         output(personTable).toConsole();
         org.assertj.db.api.Assertions.assertThat(personTable).hasNumberOfRows(1);
-        org.assertj.db.api.Assertions.assertThat(personTable).row(0).hasValues(1L, "Jakob", "White Harbour", "Targaryen");
+        org.assertj.db.api.Assertions.assertThat(personTable).row(0).hasValues(1L, "Jakob", "White Harbour", "Targaryen", 0);
     }
 
     /**
@@ -369,6 +380,819 @@ class PersonRepositoryTest {
     }
 
 
+    @Test
+    void test130_saveAll() {
+        /**
+         * arrange ... Vorbereiten der Testsituation
+         */
+        dropTable(TABLE_NAME);
+        setRepositoryInstanceToNull();
+
+        List<Person> persons = readCsv(HUGE_FILE, 199);
+        PersonRepository personRepository = getInstance();
+        personRepository.setBatchSize(50);
+
+        /**
+         * act ... Durchführen des Tests
+         */
+        List<Person> savedPersons = personRepository.saveAll(persons);
+
+        /**
+         * assert ... Ergebnisse kontrollieren
+         */
+        Table personTable = new Table(dataSource, TABLE_NAME);
+        org.assertj.db.api.Assertions.assertThat(personTable).hasNumberOfRows(199);
+        assertThat(savedPersons).extracting(Person::getId).doesNotContainNull().doesNotHaveDuplicates();
+        assertThat(personRepository.find(10)).isEqualTo(new Person("Lord Ashford", "Oros", "Lanny"));
+        assertThat(savedPersons.get(9).getId()).isEqualTo(10L);
+
+        // ein zweites saveAll mit ids aktualisiert die Datensätze
+        savedPersons.get(0).setHouse("Stark");
+        personRepository.saveAll(savedPersons);
+        personTable = new Table(dataSource, TABLE_NAME);
+        org.assertj.db.api.Assertions.assertThat(personTable).hasNumberOfRows(199);
+        assertThat(personRepository.find(savedPersons.get(0).getId()).getHouse()).isEqualTo("Stark");
+
+        // ohne vollständigen natürlichen Schlüssel wird einzeln eingefügt
+        List<Person> mixed = personRepository.saveAll(List.of(
+                new Person("Hodor", null, "Stark"), new Person("Osha", "Winterfell", "Stark")));
+        assertThat(mixed).extracting(Person::getId).doesNotContainNull().doesNotHaveDuplicates();
+        assertThat(personRepository.find(mixed.get(0).getId()).getName()).isEqualTo("Hodor");
+        assertThat(personRepository.find(mixed.get(1).getId()).getName()).isEqualTo("Osha");
+    }
+
+
+    @Test
+    void test140_statementCache() {
+        PersonRepository personRepository = getInstance();
+        Person jakob = personRepository.save(new Person("Jakob", "Bad Leonfelden", "Targaryen"));
+
+        ConnectionPool pool = personRepository.getConnectionPool();
+        long hitsBefore = pool.getStatementCacheHits();
+        for (int i = 0; i < 10; i++) {
+            assertThat(personRepository.find(jakob.getId())).isEqualTo(jakob);
+        }
+        System.out.println("hits: " + pool.getStatementCacheHits() + ", misses: " + pool.getStatementCacheMisses());
+        assertThat(pool.getStatementCacheHits() - hitsBefore).isGreaterThanOrEqualTo(9);
+
+        // fetchSize und maxRows werden beim Zurückgeben zurückgesetzt
+        String sql = "SELECT id FROM " + TABLE_NAME;
+        try (Connection conn = pool.getConnection()) {
+            int defaultFetchSize;
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                defaultFetchSize = pstmt.getFetchSize();
+                pstmt.setFetchSize(defaultFetchSize + 7);
+                pstmt.setMaxRows(1);
+            }
+            long hits = pool.getStatementCacheHits();
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                assertThat(pool.getStatementCacheHits()).isEqualTo(hits + 1);
+                assertThat(pstmt.getFetchSize()).isEqualTo(defaultFetchSize);
+                assertThat(pstmt.getMaxRows()).isZero();
+            }
+        } catch (SQLException e) {
+            fail(e.getMessage());
+        }
+    }
+
+
+    @Test
+    void test150_personCache() {
+        PersonRepository personRepository = getInstance();
+        personRepository.enablePersonCache(100, 60_000);
+        try {
+            Person jakob = personRepository.save(new Person("Jakob", "Bad Leonfelden", "Targaryen"));
+            long id = jakob.getId();
+
+            assertThat(personRepository.find(id)).isEqualTo(jakob);
+            assertThat(personRepository.find(id)).isEqualTo(jakob);
+            PersonCache cache = personRepository.getPersonCache();
+            assertThat(cache.getHits()).isEqualTo(1);
+            assertThat(cache.getMisses()).isEqualTo(1);
+
+            // save() invalidiert den Eintrag
+            jakob.setHouse("Stark");
+            personRepository.save(jakob);
+            assertThat(personRepository.find(id).getHouse()).isEqualTo("Stark");
+
+            // delete() ebenso
+            personRepository.delete(id);
+            assertThat(personRepository.find(id)).isNull();
+            System.out.println(cache);
+        } finally {
+            personRepository.disablePersonCache();
+        }
+    }
+
+
+    @Test
+    void test160_streamAndPageByHouse() {
+        List<Person> persons = readCsv(HUGE_FILE, 200);
+        PersonRepository personRepository = getInstance();
+        personRepository.saveAll(persons);
+        ConnectionPool pool = personRepository.getConnectionPool();
+
+        personRepository.setFetchSize(2);
+        try (Stream<Person> stream = personRepository.streamByHouse("Stane of Driftwood Hall")) {
+            assertThat(stream).extracting(Person::getName)
+                    .containsExactlyInAnyOrder("Timon", "Norbert Vance", "Androw Ashford", "The Great Walrus");
+        } finally {
+            personRepository.setFetchSize(DEFAULT_FETCH_SIZE);
+        }
+        // die Verbindung wurde an den Pool zurückgegeben
+        assertThat(pool.getIdleConnections()).isEqualTo(pool.getOpenConnections());
+
+        List<Person> firstPage = personRepository.findByHouse("Stane of Driftwood Hall", 0, 3);
+        assertThat(firstPage).hasSize(3);
+        long lastId = firstPage.get(2).getId();
+        List<Person> secondPage = personRepository.findByHouse("Stane of Driftwood Hall", lastId, 3);
+        assertThat(secondPage).hasSize(1);
+        assertThat(secondPage.get(0).getId()).isGreaterThan(lastId);
+    }
+
+
+    @Test
+    void test170_findByCityAndIndexes() {
+        dropTable(TABLE_NAME);
+        setRepositoryInstanceToNull();
+
+        PersonRepository personRepository = getInstance();
+        assertThat(indexExists(TABLE_NAME, HOUSE_INDEX_NAME)).isTrue();
+        assertThat(indexExists(TABLE_NAME, CITY_INDEX_NAME)).isTrue();
+
+        // ein zweiter Start darf die Indizes nicht noch einmal anlegen
+        setRepositoryInstanceToNull();
+        personRepository = getInstance();
+
+        personRepository.save(new Person("Jon Snow", "Winterfell", "Stark"));
+        personRepository.save(new Person("Arya Stark", "Winterfell", "Stark"));
+        personRepository.save(new Person("Jaime Lannister", "Casterly Rock", "Lannister"));
+
+        assertThat(personRepository.findByCity("Winterfell"))
+                .extracting(Person::getName)
+                .containsExactlyInAnyOrder("Jon Snow", "Arya Stark");
+        assertThat(personRepository.findByCity("Braavos")).isEmpty();
+    }
+
+
+    @Test
+    void test180_inMemoryDatabase() {
+        try {
+            useDatabase(DerbyMode.MEMORY, "test180");
+            assertThat(getUrl()).isEqualTo("jdbc:derby:memory:test180;create=true");
+
+            PersonRepository personRepository = getInstance();
+            Person jakob = personRepository.save(new Person("Jakob", "Bad Leonfelden", "Targaryen"));
+            assertThat(jakob.getId()).isEqualTo(1L);
+            assertThat(personRepository.find(1)).isEqualTo(jakob);
+        } finally {
+            useDatabase(DerbyMode.NETWORK, DATABASE);
+        }
+        assertThat(getUrl()).isEqualTo(URL);
+    }
+
+
+    @Test
+    void test190_asyncFanOut() {
+        List<Person> persons = readCsv(HUGE_FILE, 100);
+        PersonRepository personRepository = getInstance();
+        personRepository.saveAll(persons);
+
+        try (AsyncPersonRepository async = new AsyncPersonRepository(personRepository)) {
+            List<CompletableFuture<Person>> futures = persons.stream()
+                    .map(person -> async.findAsync(person.getId()))
+                    .collect(Collectors.toList());
+            List<Person> found = futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+
+            assertThat(found).containsExactlyElementsOf(persons);
+            assertThat(async.findByHouseAsync("Stane of Driftwood Hall").join()).isNotEmpty();
+            async.deleteAllAsync().join();
+        }
+        assertThat(personRepository.find(persons.get(0).getId())).isNull();
+    }
+
+
+    @Test
+    void test200_metrics() {
+        PersonRepository personRepository = getInstance();
+        RepositoryMetrics metrics = personRepository.getMetrics();
+        metrics.reset();
+
+        Person jakob = personRepository.save(new Person("Jakob", "Bad Leonfelden", "Targaryen"));
+        personRepository.find(jakob.getId());
+        personRepository.find(jakob.getId());
+        // Duplikat -> Fehler 23505 (unique constraint)
+        personRepository.save(new Person("Jakob", "Bad Leonfelden", "Targaryen"));
+
+        Map<String, RepositoryMetrics.Snapshot> operations = metrics.snapshotOperations();
+        operations.forEach((operation, snapshot) -> System.out.println(operation + ": " + snapshot));
+        assertThat(operations.get("find").getCount()).isEqualTo(2);
+        assertThat(operations.get("find").getRows()).isEqualTo(2);
+        assertThat(operations.get("save").getCount()).isEqualTo(2);
+        assertThat(operations.get("save").getErrors()).isEqualTo(1);
+        assertThat(operations.get("find").getErrors()).isZero();
+        assertThat(metrics.getErrorsBySqlState()).containsEntry("23505", 1L);
+        assertThat(metrics.getStatementCounts()).isNotEmpty();
+
+        // auch einfache Statements werden gemessen
+        personRepository.rebuildStatistics();
+        assertThat(metrics.getStatementCounts()).containsKey("LOCK TABLE " + TABLE_NAME + " IN SHARE MODE");
+        assertThat(metrics.getOperationErrors()).containsEntry("rebuildStatistics", 0L);
+        // Literale im SQL-Text ergeben keinen eigenen Eintrag
+        assertThat(RepositoryMetrics.normalize("SELECT seq FROM t1 WHERE seq <= 42 AND kind = 'H''s'"))
+                .isEqualTo("SELECT seq FROM t1 WHERE seq <= ? AND kind = ?");
+
+        metrics.setSlowStatementThresholdMillis(0);
+        personRepository.find(jakob.getId());
+        metrics.setSlowStatementThresholdMillis(RepositoryMetrics.DEFAULT_SLOW_STATEMENT_THRESHOLD_MILLIS);
+        assertThat(metrics.getRecentSlowStatements()).hasSize(1);
+        assertThat(metrics.getRecentSlowStatements().get(0)).contains("WHERE id=?").contains("[" + jakob.getId() + "]");
+    }
+
+
+    @Test
+    void test210_upsertAll() {
+        PersonRepository personRepository = getInstance();
+        Person jon = personRepository.save(new Person("Jon Snow", "Winterfell", "Stark"));
+
+        List<Person> persons = List.of(
+                new Person("Jon Snow", "Winterfell", "Stark"),
+                new Person("Arya Stark", "Winterfell", "Stark"),
+                new Person("Arya Stark", "Winterfell", "Stark"),
+                new Person("Jaime Lannister", "Casterly Rock", "Lannister"));
+        List<Person> upserted = personRepository.upsertAll(persons);
+
+        Table personTable = new Table(dataSource, TABLE_NAME);
+        org.assertj.db.api.Assertions.assertThat(personTable).hasNumberOfRows(3);
+        assertThat(upserted.get(0).getId()).isEqualTo(jon.getId());
+        assertThat(upserted.get(1).getId()).isNotNull().isEqualTo(upserted.get(2).getId());
+        assertThat(personRepository.find(upserted.get(3).getId())).isEqualTo(persons.get(3));
+
+        // ein zweiter Durchlauf ändert nichts
+        personRepository.upsertAll(persons);
+        personTable = new Table(dataSource, TABLE_NAME);
+        org.assertj.db.api.Assertions.assertThat(personTable).hasNumberOfRows(3);
+
+        // null im natürlichen Schlüssel wird abgelehnt, bevor etwas gespeichert wird
+        assertThatThrownBy(() -> personRepository.upsertAll(List.of(
+                new Person("Sansa Stark", "Winterfell", "Stark"), new Person("Hodor", "Winterfell", null))))
+                .isInstanceOf(IllegalArgumentException.class);
+        org.assertj.db.api.Assertions.assertThat(new Table(dataSource, TABLE_NAME)).hasNumberOfRows(3);
+
+        // ein fehlgeschlagener Block wird gemeldet, die übrigen Blöcke werden gespeichert
+        Person tooLong = new Person("x".repeat(300), "Winterfell", "Stark");
+        Person sansa = new Person("Sansa Stark", "Winterfell", "Stark");
+        personRepository.setBatchSize(1);
+        try {
+            assertThatThrownBy(() -> personRepository.upsertAll(List.of(tooLong, sansa)))
+                    .isInstanceOfSatisfying(BatchFailedException.class,
+                            e -> assertThat(e.getFailed()).containsExactly(tooLong));
+        } finally {
+            personRepository.setBatchSize(DEFAULT_BATCH_SIZE);
+        }
+        assertThat(tooLong.getId()).isNull();
+        assertThat(personRepository.find(sansa.getId())).isEqualTo(sansa);
+    }
+
+
+    @Test
+    void test220_bulkLoad() throws IOException {
+        dropTable(TABLE_NAME);
+        setRepositoryInstanceToNull();
+        PersonRepository personRepository = getInstance();
+
+        PersonBulkLoader.Result result = personRepository.bulkLoad(Paths.get(HUGE_FILE));
+        System.out.println(result);
+
+        assertThat(result.isUsedImportProcedure()).isTrue();
+        assertThat(result.getCount()).isEqualTo(200);
+        assertThat(result.getFirstId()).isEqualTo(1);
+        assertThat(result.getLastId()).isEqualTo(200);
+        assertThat(personRepository.find(10)).isEqualTo(new Person("Lord Ashford", "Oros", "Lanny"));
+    }
+
+    @Test
+    void test230_bulkLoadFallsBackToJdbc() throws IOException {
+        PersonRepository personRepository = getInstance();
+
+        // got2.csv enthält Arya Stark zweimal, der Import mit SYSCS_IMPORT_DATA schlägt daher fehl
+        PersonBulkLoader.Result result = personRepository.bulkLoad(Paths.get(SMALL_FILE));
+        System.out.println(result);
+
+        assertThat(result.isUsedImportProcedure()).isFalse();
+        assertThat(result.getCount()).isEqualTo(6);
+        assertThat(personRepository.findByHouse("Dragonstone")).hasSize(2);
+    }
+
+
+    @Test
+    void test240_snapshotStore() {
+        List<Person> persons = readCsv(HUGE_FILE, 200);
+        PersonRepository personRepository = getInstance();
+        personRepository.saveAll(persons);
+
+        PersonSnapshotStore store = personRepository.snapshotStore(true);
+        PersonSnapshot snapshot = store.current();
+        assertThat(snapshot.size()).isEqualTo(200);
+        assertThat(snapshot.dictionarySize()).isLessThan(3 * 200);
+
+        Person tenth = persons.get(9);
+        assertThat(store.find(tenth.getId())).isEqualTo(tenth);
+        assertThat(store.find(tenth.getId()).getId()).isEqualTo(tenth.getId());
+        assertThat(store.find(-1)).isNull();
+        assertThat(store.findByHouse("Stane of Driftwood Hall")).hasSize(4);
+        assertThat(store.findByCity(tenth.getCity())).contains(tenth);
+
+        // nach einem Schreibzugriff wird der Schnappschuss im Hintergrund neu geladen,
+        // bis dahin liefert der Store ohne zu warten den alten
+        personRepository.delete(tenth.getId());
+        assertThat(store.current()).isSameAs(snapshot);
+        store.refreshAsync().join();
+        assertThat(store.find(tenth.getId())).isNull();
+        assertThat(store.current()).isNotSameAs(snapshot);
+
+        personRepository.delete(persons.get(10).getId());
+        store.refresh();
+        assertThat(store.find(persons.get(10).getId())).isNull();
+
+        // Änderungen an der Repository-Instanz vorbei kommen über das Änderungsprotokoll
+        insertPerson("Nymeria", "Ny Sar", "Rhoynar");
+        store.refresh();
+        assertThat(store.findByHouse("Rhoynar")).extracting(Person::getName).containsExactly("Nymeria");
+        assertThat(store.current().size()).isEqualTo(199);
+    }
+
+
+    @Test
+    void test250_changeLog() {
+        PersonRepository personRepository = getInstance();
+        long sequence = personRepository.getLatestChangeSequence();
+
+        Person jon = personRepository.save(new Person("Jon Snow", "Winterfell", "Stark"));
+        jon.setHouse("Targaryen");
+        personRepository.save(jon);
+        personRepository.delete(jon.getId());
+
+        List<PersonChange> changes = personRepository.findChangesSince(sequence, 10);
+        changes.forEach(System.out::println);
+        assertThat(changes)
+                .extracting(PersonChange::getPersonId, PersonChange::getOperation)
+                .containsExactly(
+                        tuple(jon.getId(), PersonChange.Operation.INSERT),
+                        tuple(jon.getId(), PersonChange.Operation.UPDATE),
+                        tuple(jon.getId(), PersonChange.Operation.DELETE));
+
+        // in Blöcken abholen
+        List<PersonChange> firstBatch = personRepository.findChangesSince(sequence, 2);
+        assertThat(firstBatch).hasSize(2);
+        assertThat(personRepository.findChangesSince(firstBatch.get(1).getSequence(), 2)).hasSize(1);
+
+        personRepository.deleteChangesUpTo(personRepository.getLatestChangeSequence());
+        assertThat(personRepository.findChangesSince(0, 10)).isEmpty();
+    }
+
+    @Test
+    void test255_changeLogWaitsForOpenTransactions() throws Exception {
+        PersonRepository personRepository = getInstance();
+        long sequence = personRepository.getLatestChangeSequence();
+
+        try (Connection conn = dataSource.getConnection()) {
+            // die offene Transaktion hat die kleinere seq, committet aber erst nach arya
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "INSERT INTO " + TABLE_NAME + " (name, city, house) VALUES ('Sansa Stark', 'Winterfell', 'Stark')")) {
+                pstmt.executeUpdate();
+            }
+            Person arya = personRepository.save(new Person("Arya Stark", "Winterfell", "Stark"));
+
+            CompletableFuture<List<PersonChange>> changes =
+                    CompletableFuture.supplyAsync(() -> personRepository.findChangesSince(sequence, 10));
+            Thread.sleep(300);
+            assertThat(changes).isNotDone();
+            conn.commit();
+
+            assertThat(changes.get(10, TimeUnit.SECONDS))
+                    .extracting(PersonChange::getOperation)
+                    .containsExactly(PersonChange.Operation.INSERT, PersonChange.Operation.INSERT);
+            assertThat(changes.get().get(1).getPersonId()).isEqualTo(arya.getId());
+        }
+    }
+
+
+    @Test
+    void test260_optimisticLocking() {
+        PersonRepository personRepository = getInstance();
+        Person jon = personRepository.save(new Person("Jon Snow", "Winterfell", "Stark"));
+        assertThat(jon.getVersion()).isEqualTo(0);
+
+        Person first = personRepository.find(jon.getId());
+        Person second = personRepository.find(jon.getId());
+        first.setCity("Castle Black");
+        personRepository.save(first);
+        assertThat(first.getVersion()).isEqualTo(1);
+
+        second.setCity("Dragonstone");
+        assertThatThrownBy(() -> personRepository.save(second))
+                .isInstanceOf(OptimisticLockException.class);
+        assertThat(personRepository.find(jon.getId()).getCity()).isEqualTo("Castle Black");
+
+        // saveAll() speichert die übrigen Blöcke und meldet die Konflikte am Ende
+        personRepository.setBatchSize(1);
+        Person arya = new Person("Arya Stark", "Winterfell", "Stark");
+        try {
+            assertThatThrownBy(() -> personRepository.saveAll(List.of(second, arya)))
+                    .isInstanceOfSatisfying(BatchFailedException.class, e -> {
+                        assertThat(e.getFailed()).containsExactly(second);
+                        assertThat(e.getCause()).isInstanceOf(OptimisticLockException.class);
+                    });
+        } finally {
+            personRepository.setBatchSize(DEFAULT_BATCH_SIZE);
+        }
+        assertThat(arya.getId()).isNotNull();
+        assertThat(personRepository.find(jon.getId()).getCity()).isEqualTo("Castle Black");
+
+        // auch Personen aus dem Schnappschuss haben ihre version
+        assertThat(personRepository.snapshotStore(false).find(jon.getId()).getVersion()).isEqualTo(1);
+
+        // ohne version wird ohne Prüfung überschrieben
+        Person unversioned = new Person("Jon Snow", "The Wall", "Stark");
+        unversioned.setId(jon.getId());
+        personRepository.save(unversioned);
+        assertThat(personRepository.find(jon.getId()).getVersion()).isEqualTo(2);
+    }
+
+    @Test
+    void test270_modifyRetriesOnConflict() throws InterruptedException {
+        PersonRepository personRepository = getInstance();
+        personRepository.setRetryPolicy(new RetryPolicy(100, 1));
+        Person jon = personRepository.save(new Person("Jon Snow", "", "Stark"));
+
+        int writers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        for (int i = 0; i < writers; i++) {
+            executor.submit(() -> personRepository.modify(jon.getId(), person -> person.setCity(person.getCity() + "x")));
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+
+        Person stored = personRepository.find(jon.getId());
+        assertThat(stored.getCity()).isEqualTo("xxxxxxxx");
+        assertThat(stored.getVersion()).isEqualTo(writers);
+        assertThat(personRepository.modify(-1, person -> person.setCity("nowhere"))).isNull();
+        personRepository.setRetryPolicy(RetryPolicy.DEFAULT);
+    }
+
+
+    @Test
+    void test280_inTransaction() throws SQLException {
+        PersonRepository personRepository = getInstance();
+        Person arya = personRepository.save(new Person("Arya Stark", "Winterfell", "Stark"));
+        Person jon = new Person("Jon Snow", "Winterfell", "Stark");
+        Person sansa = new Person("Sansa Stark", "Winterfell", "Stark");
+
+        boolean committed = personRepository.inTransaction(Connection.TRANSACTION_SERIALIZABLE, tx -> {
+            tx.save(jon);
+            // der Block scheitert am Duplikat und wird bis zum Savepoint zurückgerollt
+            tx.saveAll(List.of(sansa, new Person("Jon Snow", "Winterfell", "Stark")));
+            tx.delete(arya.getId());
+            assertThat(tx.findByHouse("Stark")).containsExactlyInAnyOrder(jon, sansa);
+        });
+
+        assertThat(committed).isTrue();
+        assertThat(personRepository.findByHouse("Stark")).containsExactlyInAnyOrder(jon, sansa);
+        // der Pool setzt den Isolation-Level beim Zurückgeben zurück
+        try (Connection conn = personRepository.getConnection()) {
+            assertThat(conn.getTransactionIsolation()).isEqualTo(Connection.TRANSACTION_READ_COMMITTED);
+        }
+    }
+
+    @Test
+    void test290_inTransactionRollsBack() {
+        PersonRepository personRepository = getInstance();
+        Person jon = personRepository.save(new Person("Jon Snow", "Winterfell", "Stark"));
+
+        assertThatThrownBy(() -> personRepository.inTransaction(tx -> {
+            tx.delete(jon.getId());
+            tx.saveAll(List.of(new Person("Sansa Stark", "Winterfell", "Stark"),
+                    new Person("Jon Snow", "Winterfell", "Stark")));
+            throw new IllegalStateException("abort");
+        })).hasMessage("abort");
+
+        assertThat(personRepository.findByHouse("Stark")).containsExactly(jon);
+    }
+
+
+    @Test
+    void test300_writeBehind() {
+        PersonRepository personRepository = getInstance();
+        Person jon = personRepository.save(new Person("Jon Snow", "Winterfell", "Stark"));
+        personRepository.enableWriteBehind(1000, 60_000);
+        try {
+            for (String city : List.of("Castle Black", "Hardhome", "The Wall")) {
+                Person update = new Person("Jon Snow", city, "Stark");
+                update.setId(jon.getId());
+                personRepository.save(update);
+            }
+            Person sansa = personRepository.save(new Person("Sansa Stark", "Winterfell", "Stark"));
+            WriteBehindBuffer buffer = personRepository.getWriteBehindBuffer();
+
+            assertThat(sansa.getId()).isNull();
+            assertThat(buffer.size()).isEqualTo(2);
+            assertThat(buffer.getCoalesced()).isEqualTo(2);
+            assertThat(personRepository.find(jon.getId()).getCity()).isEqualTo("The Wall");
+            assertThat(personRepository.findByCity("The Wall")).isEmpty();
+
+            assertThat(personRepository.flush()).isEqualTo(2);
+            assertThat(sansa.getId()).isNotNull();
+            assertThat(personRepository.findByHouse("Stark"))
+                    .extracting(Person::getCity)
+                    .containsExactlyInAnyOrder("The Wall", "Winterfell");
+        } finally {
+            personRepository.disableWriteBehind();
+        }
+    }
+
+    @Test
+    void test305_writeBehindBuffersCopiesAndDropsOnlyConflicts() {
+        PersonRepository personRepository = getInstance();
+        Person jon = personRepository.save(new Person("Jon Snow", "Winterfell", "Stark"));
+        personRepository.modify(jon.getId(), person -> person.setCity("Castle Black"));
+        personRepository.enableWriteBehind(1000, 60_000);
+        try {
+            Person stale = new Person("Jon Snow", "Hardhome", "Stark");
+            stale.setId(jon.getId());
+            stale.setVersion(jon.getVersion());
+            personRepository.save(stale);
+            Person arya = personRepository.save(new Person("Arya Stark", "Braavos", "Stark"));
+            arya.setCity("Harrenhal");
+
+            assertThat(personRepository.flush()).isEqualTo(1);
+            WriteBehindBuffer buffer = personRepository.getWriteBehindBuffer();
+            assertThat(buffer.getFailed()).isEqualTo(1);
+            assertThat(arya.getId()).isNotNull();
+            assertThat(personRepository.find(arya.getId()).getCity()).isEqualTo("Braavos");
+            assertThat(personRepository.find(jon.getId()).getCity()).isEqualTo("Castle Black");
+        } finally {
+            personRepository.disableWriteBehind();
+        }
+    }
+
+    @Test
+    void test310_writeBehindFlushesBySizeAndOnDisable() {
+        PersonRepository personRepository = getInstance();
+        Person deleted = personRepository.save(new Person("Arya Stark", "Braavos", "Stark"));
+        personRepository.enableWriteBehind(10, 60_000);
+        for (int i = 0; i < 25; i++) {
+            personRepository.save(new Person("Person " + i, "Winterfell", "Stark"));
+        }
+        // ob ein Flush im Hintergrund die Änderung noch schreibt oder nicht: danach ist die Person gelöscht
+        deleted.setCity("Winterfell");
+        personRepository.save(deleted);
+        personRepository.delete(deleted.getId());
+        personRepository.disableWriteBehind();
+
+        assertThat(personRepository.getWriteBehindBuffer()).isNull();
+        assertThat(personRepository.findByCity("Winterfell")).hasSize(25);
+        assertThat(personRepository.find(deleted.getId())).isNull();
+    }
+
+    @Test
+    void test315_writeBehindSaveDuringFlushInsertsOnce() throws Exception {
+        PersonRepository personRepository = getInstance();
+        personRepository.enableWriteBehind(1000, 60_000);
+        try {
+            WriteBehindBuffer buffer = personRepository.getWriteBehindBuffer();
+            Person bran = personRepository.save(new Person("Bran Stark", "Winterfell", "Stark"));
+            CompletableFuture<Integer> flush;
+            try (Connection conn = dataSource.getConnection()) {
+                // hält den Flush im INSERT fest
+                conn.setAutoCommit(false);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("LOCK TABLE " + TABLE_NAME + " IN EXCLUSIVE MODE");
+                }
+                flush = CompletableFuture.supplyAsync(personRepository::flush);
+                while (buffer.size() > 0) {
+                    Thread.sleep(10);
+                }
+                bran.setCity("The Wall");
+                personRepository.save(bran);
+                conn.commit();
+            }
+            assertThat(flush.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+            assertThat(bran.getId()).isNotNull();
+            assertThat(personRepository.find(bran.getId()).getCity()).isEqualTo("The Wall");
+
+            assertThat(personRepository.flush()).isEqualTo(1);
+            assertThat(personRepository.findByHouse("Stark"))
+                    .extracting(Person::getCity)
+                    .containsExactly("The Wall");
+        } finally {
+            personRepository.disableWriteBehind();
+        }
+    }
+
+    @Test
+    void test320_writeBehindSaveAllAndModifyWinOverBufferedChanges() {
+        PersonRepository personRepository = getInstance();
+        Person jon = personRepository.save(new Person("Jon Snow", "Winterfell", "Stark"));
+        Person arya = personRepository.save(new Person("Arya Stark", "Winterfell", "Stark"));
+        personRepository.enableWriteBehind(1000, 60_000);
+        try {
+            Person buffered = personRepository.find(jon.getId());
+            buffered.setCity("Hardhome");
+            personRepository.save(buffered);
+            Person newer = new Person("Jon Snow", "Castle Black", "Stark");
+            newer.setId(jon.getId());
+            personRepository.saveAll(List.of(newer));
+
+            Person braavos = personRepository.find(arya.getId());
+            braavos.setCity("Braavos");
+            personRepository.save(braavos);
+            personRepository.modify(arya.getId(), person -> person.setName("No One"));
+
+            personRepository.flush();
+            assertThat(personRepository.find(jon.getId()).getCity()).isEqualTo("Castle Black");
+            assertThat(personRepository.find(arya.getId()))
+                    .isEqualTo(new Person("No One", "Braavos", "Stark"));
+        } finally {
+            personRepository.disableWriteBehind();
+        }
+    }
+
+
+    @Test
+    void test320_findAll() throws IOException {
+        PersonRepository personRepository = getInstance();
+        long firstId = personRepository.bulkLoad(Paths.get(HUGE_FILE)).getFirstId();
+        List<Long> ids = LongStream.range(firstId, firstId + 1000).boxed().collect(Collectors.toList());
+        Person first = personRepository.find(firstId + 10);
+        ids.add(first.getId());
+        ids.add(null);
+
+        RepositoryMetrics metrics = personRepository.getMetrics();
+        metrics.reset();
+        Map<Long, Person> persons = personRepository.findAll(ids);
+
+        assertThat(persons).hasSize(200);
+        assertThat(persons.get(first.getId())).isEqualTo(first);
+        assertThat(persons.keySet()).allMatch(id -> id >= firstId && id < firstId + 200);
+        // 1000 ids: 256 + 256 + 256 + 232 (auf 256 aufgefüllt)
+        assertThat(metrics.snapshotStatements().keySet()).hasSize(1);
+        assertThat(metrics.snapshotStatements().values().iterator().next().getCount()).isEqualTo(4);
+        assertThat(personRepository.findAll(List.of())).isEmpty();
+    }
+
+
+    @Test
+    void test330_statistics() throws IOException, SQLException {
+        PersonRepository personRepository = getInstance();
+        Person jon = personRepository.save(new Person("Jon Snow", "Winterfell", "Stark"));
+        Person arya = personRepository.save(new Person("Arya Stark", "Winterfell", "Stark"));
+        personRepository.save(new Person("Daenerys Targaryen", "Dragonstone", "Targaryen"));
+        assertThat(personRepository.countByHouse("Stark")).isEqualTo(2);
+
+        // Haus und Stadt ändern, löschen
+        jon.setHouse("Targaryen");
+        jon.setCity("Castle Black");
+        personRepository.save(jon);
+        personRepository.delete(arya.getId());
+
+        assertThat(personRepository.countByHouse()).containsOnly(entry("Targaryen", 2L));
+        assertThat(personRepository.countByCity())
+                .containsOnly(entry("Castle Black", 1L), entry("Dragonstone", 1L));
+        assertThat(personRepository.countByHouse("Stark")).isZero();
+
+        // got.csv über SYSCS_IMPORT_DATA
+        personRepository.deleteAll();
+        personRepository.bulkLoad(Paths.get(HUGE_FILE));
+        Map<String, Long> expected = new MappedCsvReader().readAll(Paths.get(HUGE_FILE)).stream()
+                .collect(Collectors.groupingBy(Person::getHouse, Collectors.counting()));
+        assertThat(personRepository.countByHouse()).isEqualTo(expected);
+        Map<String, Long> top = personRepository.topHouses(3);
+        assertThat(top).hasSize(3);
+        assertThat(new ArrayList<>(top.values())).isSortedAccordingTo(Comparator.reverseOrder());
+        assertThat(top.values().iterator().next()).isEqualTo(Collections.max(expected.values()));
+
+        // die Differenzen werden zu einer Zeile pro Haus bzw. Stadt zusammengefasst
+        Map<String, Long> cities = personRepository.countByCity();
+        personRepository.compactStatistics();
+        assertThat(personRepository.countByHouse()).isEqualTo(expected);
+        assertThat(personRepository.countByCity()).isEqualTo(cities);
+        org.assertj.db.api.Assertions.assertThat(new Table(dataSource, STATS_TABLE_NAME))
+                .hasNumberOfRows(expected.size() + cities.size());
+
+        // Zähler zerstören und neu berechnen
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM " + STATS_TABLE_NAME);
+        }
+        assertThat(personRepository.countByHouse()).isEmpty();
+        personRepository.rebuildStatistics();
+        assertThat(personRepository.countByHouse()).isEqualTo(expected);
+    }
+
+
+    @Test
+    void test340_searchByName() {
+        PersonRepository personRepository = getInstance();
+        // standardmäßig beim Erzeugen des Repositories aufgebaut
+        assertThat(personRepository.getNameIndex()).isNotNull();
+        Person tyrion = personRepository.save(new Person("Tyrion Lannister", "Casterly Rock", "Lannister"));
+        Person cersei = personRepository.save(new Person("Cersei Lannister", "King's Landing", "Lannister"));
+        Person lancel = personRepository.save(new Person("Lancel Lannister", "Casterly Rock", "Lannister"));
+        personRepository.enableNameIndex();
+        assertThat(personRepository.getNameIndex().size()).isEqualTo(3);
+
+        // Wortanfänge alphabetisch ("lancel lannister" < "lannister"), gleiche Wortanfänge nach id
+        assertThat(personRepository.searchByName("lan", 10)).containsExactly(lancel, tyrion, cersei);
+        assertThat(personRepository.searchByName("TYRION L", 10)).containsExactly(tyrion);
+        // Teilstrings nach den Präfixtreffern
+        assertThat(personRepository.searchByName("rion", 10)).containsExactly(tyrion);
+        assertThat(personRepository.searchByName("ers", 10)).containsExactly(cersei);
+        assertThat(personRepository.searchByName("lannister", 2)).hasSize(2);
+        assertThat(personRepository.searchByName("stark", 10)).isEmpty();
+
+        // save, delete, saveAll und zurückgerollte Transaktionen halten den Index aktuell
+        tyrion.setName("Tyrion Stark");
+        personRepository.save(tyrion);
+        personRepository.delete(cersei.getId());
+        personRepository.saveAll(List.of(new Person("Arya Stark", "Winterfell", "Stark")));
+        assertThatThrownBy(() -> personRepository.inTransaction(tx -> {
+            tx.save(new Person("Sansa Stark", "Winterfell", "Stark"));
+            throw new IllegalStateException("rollback");
+        })).isInstanceOf(IllegalStateException.class);
+        // der Index wird im Hintergrund aktualisiert, refresh() wartet darauf
+        personRepository.getNameIndex().refresh();
+
+        assertThat(personRepository.searchByName("stark", 10)).extracting(Person::getName)
+                .containsExactly("Tyrion Stark", "Arya Stark");
+        assertThat(personRepository.searchByName("lannister", 10)).containsExactly(lancel);
+
+        personRepository.deleteAll();
+        personRepository.getNameIndex().refresh();
+        assertThat(personRepository.searchByName("stark", 10)).isEmpty();
+        assertThat(personRepository.getNameIndex().size()).isZero();
+    }
+
+
+    @Test
+    void test345_searchByNameAfterDeletedChanges() throws SQLException {
+        PersonRepository personRepository = getInstance();
+        personRepository.disableNameIndex();
+        Person tyrion = personRepository.save(new Person("Tyrion Lannister", "Casterly Rock", "Lannister"));
+        // ohne Index über LIKE
+        assertThat(personRepository.searchByName("ANNI", 10)).containsExactly(tyrion);
+        assertThat(personRepository.searchByName("%", 10)).isEmpty();
+        assertThat(personRepository.getNameIndex()).isNull();
+
+        personRepository.enableNameIndex();
+        PersonNameIndex index = personRepository.getNameIndex();
+        assertThat(index.size()).isEqualTo(1);
+
+        // noch nicht übernommene Änderungen über das Repository gelöscht
+        Person cersei = personRepository.save(new Person("Cersei Lannister", "King's Landing", "Lannister"));
+        personRepository.deleteChangesUpTo(personRepository.getLatestChangeSequence());
+        index.refresh();
+        assertThat(personRepository.searchByName("lannister", 10)).containsExactly(tyrion, cersei);
+
+        // ... und von einem anderen Prozess
+        Person jaime = personRepository.save(new Person("Jaime Lannister", "Casterly Rock", "Lannister"));
+        personRepository.delete(tyrion.getId());
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM " + PersonRepository.CHANGE_TABLE_NAME + " WHERE seq < "
+                    + personRepository.getLatestChangeSequence());
+        }
+        index.refresh();
+        assertThat(personRepository.searchByName("lannister", 10)).containsExactly(cersei, jaime);
+        assertThat(index.size()).isEqualTo(2);
+        personRepository.disableNameIndex();
+    }
+
+    @Test
+    void test350_poolSettingsFromSystemProperties() {
+        try {
+            System.setProperty(PersonRepository.POOL_MAX_SIZE_PROPERTY, "4");
+            useDatabase(DerbyMode.NETWORK, DATABASE);
+            assertThat(getInstance().getConnectionPool().getMaxSize()).isEqualTo(4);
+        } finally {
+            System.clearProperty(PersonRepository.POOL_MAX_SIZE_PROPERTY);
+            useDatabase(DerbyMode.NETWORK, DATABASE);
+        }
+        assertThat(getInstance().getConnectionPool().getMaxSize()).isEqualTo(PersonRepository.POOL_MAX_SIZE);
+    }
+
+    @Test
+    void test360_close() {
+        PersonRepository closed = getInstance();
+        closed.close();
+
+        PersonRepository personRepository = getInstance();
+        assertThat(personRepository).isNotSameAs(closed);
+        assertThat(personRepository.save(new Person("Jon Snow", "Winterfell", "Stark")).getId()).isNotNull();
+    }
+
+
     /*
 
 
@@ -494,6 +1318,20 @@ class PersonRepositoryTest {
         return false;
     }
 
+    private boolean indexExists(String table, String index) {
+        try (Connection conn = dataSource.getConnection();
+             ResultSet rs = conn.getMetaData().getIndexInfo(null, null, table.toUpperCase(), false, false)) {
+            while (rs.next()) {
+                if (index.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+        return false;
+    }
+
     /**
      * Hier wird Reflection verwendet, um auf ein privates Feld zugreifen zu können,
      * was wir ebenfalls noch nicht gelernt haben